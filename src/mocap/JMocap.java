@@ -13,7 +13,11 @@ import java.io.Console;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.media.j3d.AmbientLight;
 import javax.media.j3d.Appearance;
 import javax.media.j3d.BoundingSphere;
@@ -33,14 +37,20 @@ import com.sun.j3d.utils.geometry.Sphere;
 import com.sun.j3d.utils.universe.SimpleUniverse;
 import mocap.figure.AnimData;
 import mocap.figure.Bone;
+import mocap.figure.ClipStore;
+import mocap.figure.Crowd;
 import mocap.figure.Figure;
 import mocap.figure.FigureManager;
 import mocap.figure.JointPosLine;
+import mocap.figure.Skeleton;
 // import mocap.figure.MotionTrailPoint;
 import mocap.gui.CameraChangeListener;
 import mocap.gui.ControlPanel;
 import mocap.player.DanceCreator;
+import mocap.player.DanceStream;
+import mocap.player.FigureUpdateBehavior;
 import mocap.player.PerlinNoise;
+import mocap.reader.BVHClip;
 import mocap.reader.BVHReader;
 import mocap.reader.ConfigReader;
 import mocap.scene.CoordCross;
@@ -66,6 +76,13 @@ public class JMocap
     private static final int VIEW_ACTIVATION_RADIUS = 250;
     private static final double BACK_CLIP_DISTANCE = 500;
     private static final float LIGHT_REACH = 500;
+    // BVH files larger than this are played from disk (see LazyAnimData)
+    private static final long LAZY_LOAD_SIZE = 256L << 20;
+    // length of an endless dance the scrubber can reach
+    private static final int STREAM_SCRUB_SECONDS = 10 * 60;
+    private static final long STREAM_STOP_MS = 1000;
+    // distance between crowd dancers, in figure heights
+    private static final float CROWD_SPACING = 1.5f;
     private Figure _figure;
     private FigureManager _figureManager = new FigureManager();
     private static final int W = 1100;
@@ -110,6 +127,11 @@ public class JMocap
     
     private ControlPanel cPanel;
 	private DanceCreator dc;
+	private DanceStream _danceStream;
+	private Bone _danceSkeleton; // skeleton of the segments of dc
+	private FigureUpdateBehavior _updateBehavior;
+	// segments of the loaded dances, freed when the figures are cleared
+	private ArrayList<ClipStore> _clipStores = new ArrayList<ClipStore>();
     
     public JMocap()
     {
@@ -173,6 +195,18 @@ public class JMocap
         getFigureManager().pauseAll();
     }
     
+    /**
+     * @param synced true to update the figures once per rendered frame
+     *   (see FigureUpdateBehavior); the AnimClock must then be inactive
+     */
+    public void setRenderSynced(boolean synced) {
+        _updateBehavior.setEnable(synced);
+    }
+
+    public boolean isRenderSynced() {
+        return _updateBehavior.getEnable();
+    }
+
     public void initCanvasComponents()
     {
         _canvas.initComponents();
@@ -229,7 +263,10 @@ public class JMocap
         for (Figure f : _figureManager.getFigures()) {
             _root.removeChild(f.getBG());
         }
-        _figureManager.getFigures().clear();
+        for (Crowd c : _figureManager.getCrowds()) {
+            _root.removeChild(c.getBG());
+        }
+        _figureManager.removeAll();
         if (_bgMotionTrails != null) {
             _bgMotionTrails.removeAllChildren();
             _bgMotionTrails = null;
@@ -238,8 +275,13 @@ public class JMocap
         if (jointTrail != null)
         	_root.removeChild(jointTrail);
         
-        BVHReader.resetAnimData();
-
+        // the stream's producer reads the segments, which may be stored
+        stopDanceStream();
+        for (ClipStore store : _clipStores)
+        	store.close();
+        _clipStores.clear();
+        dc = null;
+        _danceSkeleton = null;
     }
 
     public void dispose()
@@ -316,10 +358,11 @@ public class JMocap
         figure.getPlayer().reset();
     }
     
-    public void initJointLine(Bone skeleton, AnimData data)
+    public void initJointLine(Figure figure)
     {
     	String boneToFollow = "RightFoot";
-    	JointPosLine jpl = new JointPosLine(skeleton, boneToFollow, data);
+    	JointPosLine jpl = new JointPosLine(Skeleton.fromBone(figure.getSkeleton()),
+    			figure.getPlayer().getAnimData(), figure.getOffset(), boneToFollow);
     	
     	jointTrail = jpl.getLineObject();
     	
@@ -331,18 +374,23 @@ public class JMocap
             throws IOException
     {
         _figureManager.pauseAll();
-        BVHReader rd = new BVHReader();
-        rd.readFile(f, targetHeight);
+        BVHReader reader = new BVHReader();
+        boolean lazy = f.length() > LAZY_LOAD_SIZE;
+        BVHClip clip = lazy
+        		? reader.readLazy(f, targetHeight) 
+        		: reader.read(f, targetHeight);
         
-        initJointLine(rd.skeleton, rd.data);
+        initFigure(clip.getSkeleton(), f.getName(), offset);
+        initAnim(clip.getData(), f.getName(), _figure);
         
-        initFigure(rd.skeleton, f.getName(), offset);
-        initAnim(rd.data, f.getName(), _figure);
+        // the trail needs every frame, which would decode all of a lazy clip
+        if (!lazy)
+        	initJointLine(_figure);
         
-        numFrames = rd.data.getNumFrames();
+        numFrames = clip.getData().getNumFrames();
         
         this.targetHeight = targetHeight;
-		_dScale = BVHReader.scale;
+		_dScale = clip.getScale();
 		
 		
 		
@@ -356,12 +404,21 @@ public class JMocap
     {
     	_figureManager.pauseAll();
     	ConfigReader cr = new ConfigReader();
-    	cr.readFile(f, workingDir, targetHeight);
+    	ClipStore store = new ClipStore();
+    	cr.setClipStore(store);
+    	try {
+    		cr.readFile(f, workingDir, targetHeight);
+    	} catch (IOException e) {
+    		store.close();
+    		throw e;
+    	}
+    	_clipStores.add(store);
     	
     	// TODO: see commented out lines in JMocapController.loadCfgAction
     	ArrayList<AnimData> segments = cr.animData;
         
     	dc = new DanceCreator(segments, cr.skeleton);
+    	_danceSkeleton = cr.skeleton;
     	AnimData dance = dc.getSequence(10);
     	
         initFigure(cr.skeleton, f.getName(), offset);
@@ -372,7 +429,7 @@ public class JMocap
         cPanel.setFrames(numFrames);
         
         this.targetHeight = targetHeight;
-		_dScale = BVHReader.scale;
+		_dScale = cr.scale;
     	
     	// try passing a segment to the PerlinNoise object to see if it works
     	PerlinNoise pn = new PerlinNoise(segments.get(0), cr.skeleton);
@@ -380,10 +437,75 @@ public class JMocap
     }
     
     public void createDance(int numSegs) {
+    	if (dc == null) // nothing loaded since the last clearAll
+    		return;
+    	stopDanceStream();
     	_figure.setAnimation(dc.getSequence(numSegs));
+    	numFrames = _figure.getPlayer().getNumFrames();
+    	cPanel.setFrames(numFrames);
+    	_figureManager.playAll();
+    }
+    
+    /**
+     * Lets the current figure dance endlessly, see DanceStream.
+     */
+    public void streamDance() {
+    	if (dc == null)
+    		return;
+    	stopDanceStream();
+    	_danceStream = new DanceStream(dc);
+    	_figure.setAnimation(_danceStream);
+    	// endless, the scrubber covers the first minutes
+    	numFrames = (int) (STREAM_SCRUB_SECONDS * _danceStream.getFps());
+    	cPanel.setFrames(numFrames);
     	_figureManager.playAll();
     }
     
+    /**
+     * Adds a crowd of dancers on a grid around the origin, each dancing one
+     * of the loaded segments in a loop, from a random point, at a slightly
+     * varied speed and facing a random direction (see Crowd).
+     */
+    public void createCrowd(int count) {
+    	if (dc == null || count <= 0)
+    		return;
+    	List<AnimData> segments = dc.getSegments();
+    	Crowd crowd = new Crowd(Skeleton.fromBone(_danceSkeleton), segments, count);
+    	Random rnd = new Random();
+    	int cols = (int) Math.ceil(Math.sqrt(count));
+    	float spacing = CROWD_SPACING * targetHeight;
+    	for (int i = 0; i < count; i++) {
+    		crowd.add(rnd.nextInt(segments.size()), 
+    				rnd.nextFloat() * 60, 
+    				.9f + .2f * rnd.nextFloat(),
+    				(i % cols - cols / 2f) * spacing, 0, 
+    				(i / cols - cols / 2f) * spacing,
+    				(float) (rnd.nextFloat() * 2 * Math.PI));
+    	}
+    	crowd.gotoTime(0);
+    	_root.addChild(crowd.getBG());
+    	_figureManager.addCrowd(crowd);
+    	_figureManager.playAll();
+    }
+    
+    /**
+     * Stops the dance stream and waits (at most STREAM_STOP_MS) for its
+     * producer to finish the segment it is working on.
+     */
+    private void stopDanceStream() {
+    	if (_danceStream != null) {
+    		_danceStream.close();
+    		try {
+    			if (!_danceStream.join(STREAM_STOP_MS))
+    				Logger.getLogger(JMocap.class.getName()).log(Level.WARNING,
+    						"dance stream did not stop within {0} ms", STREAM_STOP_MS);
+    		} catch (InterruptedException e) {
+    			Thread.currentThread().interrupt();
+    		}
+    		_danceStream = null;
+    	}
+    }
+    
     public int getNumFrames() {
     	return numFrames;
     }
@@ -459,6 +581,8 @@ public class JMocap
         r.addChild(_coordCrossSwitch);
         r.setBounds(new BoundingSphere(new Point3d(0, 0, 0), 10d));
         createFloor(r);
+        _updateBehavior = new FigureUpdateBehavior(_figureManager);
+        r.addChild(_updateBehavior);
         return r;
     }
 
@@ -4,7 +4,6 @@ import mocap.j3d.Util;
 import mocap.player.MocapPlayer;
 
 import java.util.Arrays;
-import java.util.List;
 
 import javax.media.j3d.Transform3D;
 import javax.vecmath.Quat4f;
@@ -13,68 +12,200 @@ import javax.vecmath.Vector3f;
 /**
  * Stores mocap animation data.
  * 
+ * The data is kept in flat float arrays: one per bone with the rotation
+ * quaternions (x,y,z,w per frame) and one with the root translations
+ * (x,y,z per frame). The Quat4f/Vector3f array methods are only there for
+ * compatibility and copy on every call; players should use the per-frame
+ * accessors, preferably the ones filling caller-supplied objects.
+ *
  * @author Michael Kipp
  */
 public class AnimData
 {
-	private Quat4f[][] rotations;
-	private Vector3f[] translations;
+	private float[][] rotations;
+	private float[] translations;
     private int _numFrames, _numBones;
     private float _fps = MocapPlayer.DEFAULT_FPS;
 
     public AnimData(int numBones)
     {
-        rotations = new Quat4f[numBones][]; 
+        rotations = new float[numBones][];
         
         _numBones = numBones;
     }
     
     public void putBoneRotData(int index, float[] bonedata)
     {
-    	rotations[index] = new Quat4f[_numFrames];
-    	Quat4f[] thisRot = rotations[index];
+    	float[] thisRot = new float[4 * _numFrames];
+    	Quat4f rot = new Quat4f();
     	
     	for (int i = 0; i < _numFrames; i++)
     	{
-    		float[] angles = Arrays.copyOfRange(bonedata, 3*i, 3*i+3);
-    		Quat4f rot = Util.getQuatFromEulerAngles(angles);
-    		thisRot[i] = rot;
+    		Util.setQuatFromEulerAngles(rot, bonedata[3*i], bonedata[3*i+1],
+    				bonedata[3*i+2]);
+    		putQuat(thisRot, i, rot);
     	}
+    	putBoneRotArray(index, thisRot);
     }
     
     public void putBoneRotData(int index, Quat4f[] bonedata)
     {
-    	rotations[index] = bonedata;
+    	float[] thisRot = new float[4 * bonedata.length];
+    	for (int i = 0; i < bonedata.length; i++)
+    		putQuat(thisRot, i, bonedata[i]);
+    	putBoneRotArray(index, thisRot);
     }
     
     public void putBoneTransData(float[] bonedata)
     {
-    	translations = new Vector3f[_numFrames]; 
-		for (int i = 0; i < _numFrames; i++)
+    	putBoneTransArray(Arrays.copyOf(bonedata, 3 * _numFrames));
+    }
+
+    public void putBoneTransData(Vector3f[] bonedata) {
+    	if (bonedata == null) {
+    		putBoneTransArray(null);
+    		return;
+    	}
+    	float[] trans = new float[3 * bonedata.length];
+    	for (int i = 0; i < bonedata.length; i++)
     	{
-    		float[] dir = Arrays.copyOfRange(bonedata, 3*i, 3*i+3);
-    		translations[i] = new Vector3f(dir);
+    		trans[3*i] = bonedata[i].x;
+    		trans[3*i+1] = bonedata[i].y;
+    		trans[3*i+2] = bonedata[i].z;
     	}
+    	putBoneTransArray(trans);
     }
     
-    public void putBoneTransData(Vector3f[] bonedata) {
-    	translations = bonedata;
+    /**
+     * Uses the given array (x,y,z,w per frame) as the rotation data of a
+     * bone, without copying.
+     */
+    public void putBoneRotArray(int index, float[] xyzw)
+    {
+    	rotations[index] = xyzw;
     }
     
+    /**
+     * Uses the given array (x,y,z per frame, or null) as the translation
+     * data, without copying.
+     */
+    public void putBoneTransArray(float[] xyz)
+    {
+    	translations = xyz;
+    }
+
+    /**
+     * @return the backing array of a bone's rotations, x,y,z,w per frame
+     */
+    public float[] getBoneRotArray(int boneIndex)
+    {
+    	return rotations[boneIndex];
+    }
+
+    /**
+     * @return the backing array of the translations, x,y,z per frame, or
+     *   null if there are none
+     */
+    public float[] getBoneTransArray()
+    {
+    	return translations;
+    }
+
+    /**
+     * @return a copy of the bone's rotations as Quat4f objects
+     */
     public Quat4f[] getBoneRotData(int boneindex)
     {
-    	return rotations[boneindex];
+    	Quat4f[] rot = new Quat4f[_numFrames];
+    	for (int i = 0; i < rot.length; i++)
+    		rot[i] = getBoneRot(boneindex, i);
+    	return rot;
     }
     
+    /**
+     * @return a copy of the translations as Vector3f objects, or null if
+     *   there are none
+     */
     public Vector3f[] getBoneTransData()
     {
-    	return translations;
+    	if (!hasTranslations())
+    		return null;
+    	Vector3f[] trans = new Vector3f[_numFrames];
+    	for (int i = 0; i < trans.length; i++)
+    		trans[i] = getBoneTrans(i);
+    	return trans;
+    }
+    
+    public boolean hasTranslations()
+    {
+    	return translations != null;
+    }
+    
+    /**
+     * @return true for data without a fixed end (such as a DanceStream),
+     *   whose frames are not known in advance; getNumFrames is then only
+     *   an upper bound
+     */
+    public boolean isEndless()
+    {
+    	return false;
+    }
+    
+    /**
+     * Rotation of one bone in one frame. Players should use this (rather
+     * than the whole arrays) so that they also work with data that is not
+     * completely in memory.
+     */
+    public Quat4f getBoneRot(int boneIndex, int frame)
+    {
+    	return getBoneRot(boneIndex, frame, new Quat4f());
+    }
+
+    /**
+     * Same as getBoneRot(int, int) but writes into the given quaternion.
+     *
+     * @return q
+     */
+    public Quat4f getBoneRot(int boneIndex, int frame, Quat4f q)
+    {
+    	float[] rot = rotations[boneIndex];
+    	int i = 4 * frame;
+    	q.x = rot[i];
+    	q.y = rot[i + 1];
+    	q.z = rot[i + 2];
+    	q.w = rot[i + 3];
+    	return q;
+    }
+    
+    /**
+     * @return root translation in the given frame (see getBoneRot), or null
+     *   if the data has no translations
+     */
+    public Vector3f getBoneTrans(int frame)
+    {
+    	return getBoneTrans(frame, new Vector3f());
+    }
+
+    /**
+     * Same as getBoneTrans(int) but writes into the given vector.
+     *
+     * @return v, or null if the data has no translations
+     */
+    public Vector3f getBoneTrans(int frame, Vector3f v)
+    {
+    	if (translations == null)
+    		return null;
+    	int i = 3 * frame;
+    	v.x = translations[i];
+    	v.y = translations[i + 1];
+    	v.z = translations[i + 2];
+    	return v;
     }
     
     public Transform3D getBoneXformData(int boneIndex, int frame)
     {
-    	Vector3f thisTrans = translations[frame];
-    	Quat4f   thisQuat  = rotations[boneIndex][frame];
+    	Vector3f thisTrans = getBoneTrans(frame);
+    	Quat4f   thisQuat  = getBoneRot(boneIndex, frame);
     	return new Transform3D(thisQuat, thisTrans, 1f);
     }
 
@@ -104,12 +235,22 @@ public class AnimData
     
     public void setRotations(Quat4f[][] rots)
     {
-    	rotations = rots;
+    	for (int i = 0; i < rots.length; i++)
+    		putBoneRotData(i, rots[i]);
     }
     
     public void setTranslations(Vector3f[] trans)
     {
-    	translations = trans;
+    	putBoneTransData(trans);
+    }
+
+    private static void putQuat(float[] rot, int frame, Quat4f q)
+    {
+    	int i = 4 * frame;
+    	rot[i] = q.x;
+    	rot[i + 1] = q.y;
+    	rot[i + 2] = q.z;
+    	rot[i + 3] = q.w;
     }
 
     @Override
@@ -118,23 +259,11 @@ public class AnimData
         return "<AnimData frames:" + _numFrames + ">";
     }
 
+	/**
+	 * @return the frames [startFrame, endFrame) as a view sharing this
+	 *   data, see AnimDataView
+	 */
 	public AnimData subCopy(int startFrame, int endFrame) {
-		AnimData ret = new AnimData(_numBones);
-		ret.setFps(_fps);
-		ret.setNumFrames(endFrame - startFrame);
-		
-		// chop up each bone's animdata to the specified window
-		Quat4f[][] thisRot = rotations;
-		Quat4f[][] retRot = new Quat4f[_numBones][];
-		for (int i = 0; i < thisRot.length; i++)
-		{
-			retRot[i] = Arrays.copyOfRange(thisRot[i], startFrame, endFrame);
-		}
-		ret.setRotations(retRot);
-		
-		Vector3f[] subtrans = Arrays.copyOfRange(translations, startFrame, endFrame);
-		ret.setTranslations(subtrans);		
-		
-		return ret;
+		return new AnimDataView(this, startFrame, endFrame);
 	}
 }
@@ -0,0 +1,113 @@
+package mocap.figure;
+
+import java.util.Arrays;
+
+import javax.vecmath.Quat4f;
+import javax.vecmath.Vector3f;
+
+/**
+ * A window of frames of another AnimData, sharing its storage. This is
+ * what subCopy returns, so cutting many (possibly overlapping) segments out
+ * of one capture costs no extra memory. A view of a view refers to the
+ * original data directly.
+ *
+ * Views are read-only; the array accessors return copies of the window.
+ */
+public class AnimDataView extends AnimData
+{
+	private final AnimData parent;
+	private final int start;
+
+	/**
+	 * @param startFrame first frame of parent in the view
+	 * @param endFrame first frame of parent after the view
+	 */
+	public AnimDataView(AnimData parent, int startFrame, int endFrame)
+	{
+		super(parent.getNumBones());
+		if (startFrame < 0 || endFrame < startFrame || endFrame > parent.getNumFrames())
+			throw new IndexOutOfBoundsException("frames " + startFrame + "-"
+					+ endFrame + " of " + parent.getNumFrames());
+		if (parent instanceof AnimDataView) {
+			AnimDataView view = (AnimDataView) parent;
+			startFrame += view.start;
+			endFrame += view.start;
+			parent = view.parent;
+		}
+		this.parent = parent;
+		this.start = startFrame;
+		setNumFrames(endFrame - startFrame);
+		setFps(parent.getFps());
+	}
+
+	public AnimData getParent() {
+		return parent;
+	}
+
+	/**
+	 * @return frame of the parent that is frame 0 of the view
+	 */
+	public int getStartFrame() {
+		return start;
+	}
+
+	private int check(int frame)
+	{
+		if (frame < 0 || frame >= getNumFrames())
+			throw new IndexOutOfBoundsException("frame " + frame + " of "
+					+ getNumFrames());
+		return start + frame;
+	}
+
+	@Override
+	public Quat4f getBoneRot(int boneIndex, int frame, Quat4f q)
+	{
+		return parent.getBoneRot(boneIndex, check(frame), q);
+	}
+
+	@Override
+	public Vector3f getBoneTrans(int frame, Vector3f v)
+	{
+		return parent.getBoneTrans(check(frame), v);
+	}
+
+	@Override
+	public boolean hasTranslations() {
+		return parent.hasTranslations();
+	}
+
+	@Override
+	public float[] getBoneRotArray(int boneIndex)
+	{
+		return Arrays.copyOfRange(parent.getBoneRotArray(boneIndex),
+				4 * start, 4 * (start + getNumFrames()));
+	}
+
+	@Override
+	public float[] getBoneTransArray()
+	{
+		float[] trans = parent.getBoneTransArray();
+		return trans != null 
+				? Arrays.copyOfRange(trans, 3 * start, 3 * (start + getNumFrames()))
+				: null;
+	}
+
+	@Override
+	public void putBoneRotArray(int index, float[] xyzw)
+	{
+		throw new UnsupportedOperationException("views are read-only");
+	}
+
+	@Override
+	public void putBoneTransArray(float[] xyz)
+	{
+		throw new UnsupportedOperationException("views are read-only");
+	}
+
+	@Override
+	public String toString()
+	{
+		return "<AnimDataView frames:" + start + "-" + (start + getNumFrames())
+				+ " of " + parent + ">";
+	}
+}
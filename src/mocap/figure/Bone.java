@@ -40,6 +40,10 @@ public class Bone {
 	
 	private double scaleFactor = 1d;
 	
+	// translation of bones that are not moved, never modified
+	private static final Vector3f NO_TRANSLATION = new Vector3f();
+	private Transform3D scratch = new Transform3D();
+	
 	public Bone()
 	{
 		baseTranslate = new TransformGroup();
@@ -110,7 +114,7 @@ public class Bone {
 	public void getWorldPosition(Point3d p)
 	{
 		p.set(0,0,0);
-		Util.getFullTransform(baseRotation, transWorld);
+		Util.getFullTransform(baseRotation, transWorld, scratch);
 		transWorld.transform(p);
 	}
 	
@@ -119,6 +123,7 @@ public class Bone {
 		Transform3D tf = new Transform3D();
 		tf.setTranslation(vec);
 		baseTranslate.setTransform(tf);
+		offset = new Point3d(vec);
 	}
 	
 	/**
@@ -216,7 +221,8 @@ public class Bone {
 			if (parent == null)
 				posVector.set(0,0,0);
 			
-			posVector.set(transV);
+			if (transV != null)
+				posVector.set(transV);
 			posVector.scale(scaleFactor);
 			t1.setIdentity();
 			t1.set(rot);
@@ -239,7 +245,7 @@ public class Bone {
 	
 	public void setPose(Quat4f rot, Point3d offsetTrans)
 	{
-		setPose(new Vector3f(), rot, offsetTrans);
+		setPose(NO_TRANSLATION, rot, offsetTrans);
 	}
 	
 	public void reset()
@@ -260,8 +266,12 @@ public class Bone {
 		this.jointGeom = new JointGeom(baseRotation, (float) (0.4f * scaleFactor));	
 	}
 
+	/**
+	 * @return translation from the parent joint (already scaled), or null
+	 *   if it was never set
+	 */
 	public Vector3d getOffset() {
-		return null;
+		return offset != null ? new Vector3d(offset) : null;
 	}
 
 	public int getDOF() {
@@ -0,0 +1,94 @@
+package mocap.figure;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the rotations and translations of many clips outside of the Java
+ * heap, in direct buffers, so that a large motion library does not add to
+ * the old generation the garbage collector has to go through. Each clip
+ * added becomes a StoredAnimData, a view onto its buffer.
+ *
+ * Clips stay valid until they are released or the whole store is closed;
+ * after that their views throw IllegalStateException. Releasing only
+ * drops the store's reference to a clip's buffer: its native memory stays
+ * reserved until the garbage collector collects the (small) buffer
+ * object, which may take a while as it puts no pressure on the heap. So
+ * getBytesUsed tells what the live clips take, not what is reserved, and
+ * releasing clips does not make room for new ones right away (the JVM's
+ * MaxDirectMemorySize still counts them).
+ */
+public class ClipStore
+{
+	private final List<StoredAnimData> clips = new ArrayList<StoredAnimData>();
+	private long bytesUsed = 0;
+	private boolean closed = false;
+
+	/**
+	 * Copies the data into the store.
+	 *
+	 * @return an AnimData backed by the store
+	 */
+	public synchronized StoredAnimData add(AnimData data)
+	{
+		if (closed)
+			throw new IllegalStateException("clip store has been closed");
+		int frames = data.getNumFrames();
+		int bones = data.getNumBones();
+		boolean hasTranslations = data.hasTranslations();
+		int size = 4 * bones * frames + (hasTranslations ? 3 * frames : 0);
+
+		FloatBuffer values = ByteBuffer.allocateDirect(4 * size)
+				.order(ByteOrder.nativeOrder()).asFloatBuffer();
+		for (int i = 0; i < bones; i++)
+			values.put(data.getBoneRotArray(i), 0, 4 * frames);
+		if (hasTranslations)
+			values.put(data.getBoneTransArray(), 0, 3 * frames);
+		values.clear();
+
+		StoredAnimData clip = new StoredAnimData(this, values, bones, frames,
+				hasTranslations);
+		clip.setFps(data.getFps());
+		clips.add(clip);
+		bytesUsed += 4L * size;
+		return clip;
+	}
+
+	/**
+	 * Removes one clip from this store, see the class comment for when its
+	 * memory is given back.
+	 */
+	public synchronized void release(StoredAnimData clip)
+	{
+		if (clip.getStore() != this || !clips.remove(clip))
+			return;
+		bytesUsed -= 4L * clip.release();
+	}
+
+	/**
+	 * Releases all clips; nothing can be added afterwards.
+	 */
+	public synchronized void close()
+	{
+		for (StoredAnimData clip : clips)
+			clip.release();
+		clips.clear();
+		bytesUsed = 0;
+		closed = true;
+	}
+
+	public synchronized int size() {
+		return clips.size();
+	}
+
+	/**
+	 * @return off-heap bytes of the clips still in this store (released
+	 *   ones may not have been given back yet)
+	 */
+	public synchronized long getBytesUsed() {
+		return bytesUsed;
+	}
+}
@@ -0,0 +1,323 @@
+package mocap.figure;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.media.j3d.Appearance;
+import javax.media.j3d.BranchGroup;
+import javax.media.j3d.ColoringAttributes;
+import javax.media.j3d.Geometry;
+import javax.media.j3d.GeometryArray;
+import javax.media.j3d.GeometryUpdater;
+import javax.media.j3d.LineArray;
+import javax.media.j3d.Shape3D;
+import javax.vecmath.Color3f;
+
+/**
+ * Many dancers that share one skeleton and one set of clips. Unlike a
+ * Figure, an instance has no Bones, no player and no scene graph nodes of
+ * its own: just the clip it dances, a time offset and speed, and where it
+ * stands (position and rotation about the y axis). All instances are drawn
+ * as one line array, a line per bone, written in place (by reference).
+ *
+ * update poses the instances with ForwardKinematics, in parallel batches,
+ * straight into the line array; per instance this takes its lines and a
+ * few numbers, well below a kilobyte for the usual skeletons. The skeleton
+ * and the clips are only read, so they may be shared with anything that
+ * does not change them meanwhile.
+ */
+public class Crowd implements GeometryUpdater
+{
+	/** posed in parallel above this many instances, at least this many per task */
+	private static final int MIN_INSTANCES = 16;
+
+	private static ForkJoinPool pool;
+
+	private final Skeleton skeleton;
+	private final List<AnimData> clips;
+	private final int[] lineJoints; // joint at the end of each line, the parent is at the start
+	private final int floatsPerInstance;
+	private final int capacity;
+
+	// per instance
+	private int size;
+	private final int[] clip;
+	private final float[] timeOffset;
+	private final float[] speed;
+	private final float[] placement; // x,y,z, rotation about y
+
+	private final float[] coords; // line vertices, x,y,z each
+	private double time; // seconds played
+	private volatile boolean playing;
+	private LineArray lines;
+	private BranchGroup bg;
+
+	// reused by poseAll, each with its own ForwardKinematics and scratch
+	private final Batch[] batches;
+	private final BatchAll batchAll = new BatchAll();
+
+	/**
+	 * @param skeleton used by all instances, the clips are its animations
+	 * @param clips danced by the instances, see add
+	 * @param capacity number of instances there is room for
+	 */
+	public Crowd(Skeleton skeleton, List<AnimData> clips, int capacity)
+	{
+		this.skeleton = skeleton;
+		this.clips = clips;
+		this.capacity = capacity;
+		int joints = skeleton.getNumJoints();
+		lineJoints = new int[joints - 1];
+		int k = 0;
+		for (int j = 0; j < joints; j++)
+			if (skeleton.getParent(j) >= 0)
+				lineJoints[k++] = j;
+		floatsPerInstance = 6 * lineJoints.length;
+		if ((long) floatsPerInstance * capacity > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("too many instances: " + capacity);
+
+		clip = new int[capacity];
+		timeOffset = new float[capacity];
+		speed = new float[capacity];
+		placement = new float[4 * capacity];
+		coords = new float[floatsPerInstance * capacity];
+
+		int n = Math.min(4 * getPool().getParallelism(),
+				Math.max(1, (capacity + MIN_INSTANCES - 1) / MIN_INSTANCES));
+		batches = new Batch[n];
+		for (int i = 0; i < n; i++)
+			batches[i] = new Batch();
+	}
+
+	/**
+	 * Adds an instance, posed at the next update.
+	 *
+	 * @param clipIndex index of the clip it dances, looped; the clip must
+	 *   have frames
+	 * @param offset seconds the instance is ahead in its clip
+	 * @param speed playback speed, 1 for the speed of the clip
+	 * @param x position of the instance (where the clip's origin goes)
+	 * @param heading rotation about the y axis, in radians
+	 * @return index of the instance
+	 */
+	public synchronized int add(int clipIndex, float offset, float speed,
+			float x, float y, float z, float heading)
+	{
+		if (size == capacity)
+			throw new IllegalStateException("crowd is full (" + capacity + ")");
+		if (clipIndex < 0 || clipIndex >= clips.size())
+			throw new IndexOutOfBoundsException("clip " + clipIndex + " of "
+					+ clips.size());
+		if (clips.get(clipIndex).getNumFrames() <= 0)
+			throw new IllegalArgumentException("clip " + clipIndex + " has no frames");
+		int i = size;
+		clip[i] = clipIndex;
+		timeOffset[i] = offset;
+		this.speed[i] = speed;
+		placement[4*i] = x;
+		placement[4*i + 1] = y;
+		placement[4*i + 2] = z;
+		placement[4*i + 3] = heading;
+		size++;
+		return i;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public Skeleton getSkeleton() {
+		return skeleton;
+	}
+
+	public void setIsPlaying(boolean val) {
+		playing = val;
+	}
+
+	public boolean isPlaying() {
+		return playing;
+	}
+
+	/**
+	 * Moves the time on if playing and poses all instances, like
+	 * MocapPlayer.update.
+	 *
+	 * @param fps The fps speed of the system
+	 */
+	public synchronized void update(float fps)
+	{
+		if (playing) {
+			time += 1 / fps;
+			pose();
+		}
+	}
+
+	/**
+	 * Poses all instances at the given time.
+	 */
+	public synchronized void gotoTime(double sec)
+	{
+		time = sec;
+		pose();
+	}
+
+	public synchronized double getTime() {
+		return time;
+	}
+
+	private void pose()
+	{
+		if (lines != null)
+			lines.updateData(this);
+		else
+			poseAll();
+	}
+
+	/**
+	 * Called by Java3D while the line array may be written.
+	 */
+	@Override
+	public void updateData(Geometry geometry)
+	{
+		poseAll();
+		lines.setValidVertexCount(2 * lineJoints.length * size);
+	}
+
+	/**
+	 * Poses the instances in chunks of at least MIN_INSTANCES, one per
+	 * batch; the batches are completed when this returns, so they are
+	 * reinitialized and used again on the next call.
+	 */
+	private void poseAll()
+	{
+		if (size <= MIN_INSTANCES) {
+			Batch b = batches[0];
+			poseRange(b.fk, b.pos, 0, size);
+			return;
+		}
+		int chunk = Math.max(MIN_INSTANCES, (size + batches.length - 1) / batches.length);
+		int count = (size + chunk - 1) / chunk;
+		for (int i = 0; i < count; i++)
+		{
+			Batch b = batches[i];
+			b.reinitialize();
+			b.from = i * chunk;
+			b.to = Math.min(size, b.from + chunk);
+		}
+		batchAll.reinitialize();
+		batchAll.count = count;
+		getPool().invoke(batchAll);
+	}
+
+	private static synchronized ForkJoinPool getPool()
+	{
+		if (pool == null)
+			pool = new ForkJoinPool();
+		return pool;
+	}
+
+	/**
+	 * Writes the lines of the instances from to to (exclusive) into coords.
+	 */
+	private void poseRange(ForwardKinematics fk, float[] pos, int from, int to)
+	{
+		for (int i = from; i < to; i++)
+		{
+			AnimData data = clips.get(clip[i]);
+			int frames = data.getNumFrames();
+			long f = (long) Math.floor((time * speed[i] + timeOffset[i]) * data.getFps());
+			int frame = (int) (f % frames);
+			if (frame < 0)
+				frame += frames;
+			fk.pose(data, frame, pos, null);
+
+			// place the instance: rotate about y, then move
+			float x = placement[4*i], y = placement[4*i + 1], z = placement[4*i + 2];
+			float h = placement[4*i + 3];
+			float cos = (float) Math.cos(h), sin = (float) Math.sin(h);
+			for (int k = 0; k < pos.length; k += 3)
+			{
+				float px = pos[k], pz = pos[k + 2];
+				pos[k] = cos * px + sin * pz + x;
+				pos[k + 1] += y;
+				pos[k + 2] = -sin * px + cos * pz + z;
+			}
+
+			int c = i * floatsPerInstance;
+			for (int l = 0; l < lineJoints.length; l++)
+			{
+				int j = 3 * lineJoints[l];
+				int p = 3 * skeleton.getParent(lineJoints[l]);
+				coords[c++] = pos[p];
+				coords[c++] = pos[p + 1];
+				coords[c++] = pos[p + 2];
+				coords[c++] = pos[j];
+				coords[c++] = pos[j + 1];
+				coords[c++] = pos[j + 2];
+			}
+		}
+	}
+
+	private class Batch extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		private final ForwardKinematics fk = new ForwardKinematics(skeleton);
+		private final float[] pos = new float[3 * skeleton.getNumJoints()];
+		private int from, to;
+
+		@Override
+		protected void compute()
+		{
+			poseRange(fk, pos, from, to);
+		}
+	}
+
+	/**
+	 * Runs the first count batches, one in the calling thread.
+	 */
+	private class BatchAll extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		private int count;
+
+		@Override
+		protected void compute()
+		{
+			for (int i = 1; i < count; i++)
+				batches[i].fork();
+			batches[0].invoke();
+			for (int i = count - 1; i > 0; i--)
+				batches[i].join();
+		}
+	}
+
+	/**
+	 * @return branch group drawing the crowd, created on the first call
+	 */
+	public synchronized BranchGroup getBG()
+	{
+		if (bg == null)
+		{
+			lines = new LineArray(coords.length / 3,
+					GeometryArray.COORDINATES | GeometryArray.BY_REFERENCE);
+			lines.setCapability(GeometryArray.ALLOW_REF_DATA_WRITE);
+			lines.setCapability(GeometryArray.ALLOW_COUNT_WRITE);
+			lines.setCoordRefFloat(coords);
+			lines.setValidVertexCount(2 * lineJoints.length * size);
+
+			Appearance a = new Appearance();
+			a.setColoringAttributes(new ColoringAttributes(
+					new Color3f(0.7f, 0.7f, 0.7f), ColoringAttributes.SHADE_FLAT));
+
+			bg = new BranchGroup();
+			bg.setCapability(BranchGroup.ALLOW_DETACH);
+			bg.addChild(new Shape3D(lines, a));
+		}
+		return bg;
+	}
+}
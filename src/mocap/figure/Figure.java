@@ -24,6 +24,7 @@ public class Figure
     private Point3d _offset;
     private BranchGroup _branchGroup; // scenegraph root
     private TransformGroup _tg; // can be used to give a base orientation
+    private PoseCache _poseCache; // created on demand
 
     /**
      * Creates a new figure and initializes the skeleton.
@@ -160,10 +161,53 @@ public class Figure
     {
         _player = new MocapPlayer(_skeleton, data, _offset);
         _player.setPlaybackFps(data.getFps());
+        _poseCache = null;
+    }
+
+    /**
+     * World poses of the current animation, for queries like "position of
+     * a joint in frame f" that should not pose the skeleton. Cleared when
+     * the scale or the offset is changed.
+     *
+     * @return the cache, or null if there is no animation or it is endless
+     *   (its frames are not fixed until played)
+     */
+    public PoseCache getPoseCache()
+    {
+        if (_player == null || _player.getAnimData().isEndless())
+            return null;
+        if (_poseCache == null) {
+            _poseCache = new PoseCache(Skeleton.fromBone(_skeleton),
+                    _player.getAnimData());
+            _poseCache.setOffset(_offset);
+        }
+        return _poseCache;
+    }
+
+    public Point3d getOffset()
+    {
+        return _offset;
     }
 
     public void setOffset(Point3d p)
     {
         _offset = p;
+        if (_player != null) {
+            _player.setOffset(p);
+        }
+        if (_poseCache != null) {
+            _poseCache.setOffset(p);
+        }
+    }
+
+    /**
+     * Sets the scale of the root translation (see Bone.scale).
+     */
+    public void setScale(double scale)
+    {
+        _skeleton.scale(scale);
+        if (_poseCache != null) {
+            _poseCache.setScale(scale);
+        }
     }
 }
@@ -1,18 +1,40 @@
 package mocap.figure;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import javax.vecmath.Point3d;
 
+import mocap.player.AnimClock;
+import mocap.player.MocapPlayer;
+
 /**
  * Manages a number of figures.
  * 
+ * An update is done in two phases: the poses of all figures due for a new
+ * frame are read from their animation data in parallel, then set to the
+ * scene graph, one figure after the other, on the thread calling update.
+ * 
+ * The lists of figures and crowds are only used under the lock of the
+ * manager, so the GUI may change them while a clock updates the figures;
+ * getFigures and getCrowds return copies.
+ * 
  * @author Michael Kipp
  */
 public class FigureManager {
 
     private List<Figure> _figures = new ArrayList<Figure>();
+    private List<Crowd> _crowds = new ArrayList<Crowd>();
+    private AnimClock _clock; // woken when playback starts
+    /** sampled in parallel above this many figures, at least this many per task */
+    private static final int MIN_FIGURES = 8;
+    private static ForkJoinPool pool;
+    private MocapPlayer[] _batch = new MocapPlayer[16]; // reused by update
+    private Sample[] _tasks = new Sample[0]; // reused by sampleParallel
+    private final SampleAll _sampleAll = new SampleAll();
 
     public FigureManager() {
     }
@@ -22,67 +44,229 @@ public class FigureManager {
     
      * @return Created figure object.
      */
-    public Figure addFigure(String name, Bone skeleton, Point3d offset) {
+    public synchronized Figure addFigure(String name, Bone skeleton, Point3d offset) {
         Figure f = new Figure(name, skeleton);
         f.setOffset(offset);
         _figures.add(f);
         return f;
     }
 
-    public List<Figure> getFigures() {
-        return _figures;
+    /**
+     * @return a copy of the list of figures
+     */
+    public synchronized List<Figure> getFigures() {
+        return new ArrayList<Figure>(_figures);
     }
 
-    public void update(float fps) {
-        for (Figure f : _figures) {
-            if (f.hasAnimation()) {
-                f.getPlayer().update(fps);
+    /**
+     * Removes all figures and crowds.
+     */
+    public synchronized void removeAll() {
+        _figures.clear();
+        _crowds.clear();
+    }
+
+    /**
+     * Adds a crowd, updated and played along with the figures.
+     */
+    public synchronized void addCrowd(Crowd crowd) {
+        _crowds.add(crowd);
+    }
+
+    /**
+     * @return a copy of the list of crowds
+     */
+    public synchronized List<Crowd> getCrowds() {
+        return new ArrayList<Crowd>(_crowds);
+    }
+
+    public void setClock(AnimClock clock) {
+        _clock = clock;
+    }
+
+    /**
+     * @return true if any figure is playing
+     */
+    public synchronized boolean isPlaying() {
+        for (int i = 0; i < _figures.size(); i++) {
+            Figure f = _figures.get(i);
+            if (f.hasAnimation() && f.getPlayer().isPlaying()) {
+                return true;
+            }
+        }
+        for (int i = 0; i < _crowds.size(); i++) {
+            if (_crowds.get(i).isPlaying()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized void update(float fps) {
+        // indexed, this runs for every tick and should not allocate
+        // (the arrays below only grow with the number of figures)
+        for (int i = 0; i < _crowds.size(); i++) {
+            _crowds.get(i).update(fps);
+        }
+
+        int n = 0;
+        for (int i = 0; i < _figures.size(); i++) {
+            Figure f = _figures.get(i);
+            if (f.hasAnimation() && f.getPlayer().advance(fps)) {
+                if (n == _batch.length) {
+                    _batch = Arrays.copyOf(_batch, 2 * n);
+                }
+                _batch[n++] = f.getPlayer();
+            }
+        }
+        if (n == 0) {
+            return;
+        }
+
+        // phase one: sample the poses
+        if (n > MIN_FIGURES) {
+            sampleParallel(n);
+        } else {
+            for (int i = 0; i < n; i++) {
+                _batch[i].samplePose();
+            }
+        }
+
+        // phase two: set them
+        for (int i = 0; i < n; i++) {
+            _batch[i].applyPose();
+            _batch[i] = null;
+        }
+    }
+
+    /**
+     * Samples _batch[0] to _batch[n] (exclusive) in parallel, in chunks of
+     * at least MIN_FIGURES players. The tasks are completed when this
+     * returns, so they are reinitialized and used again on the next call.
+     */
+    private void sampleParallel(int n) {
+        ForkJoinPool p = getPool();
+        int chunks = 4 * p.getParallelism();
+        int chunk = Math.max(MIN_FIGURES, (n + chunks - 1) / chunks);
+        int count = (n + chunk - 1) / chunk;
+        if (count > _tasks.length) {
+            int old = _tasks.length;
+            _tasks = Arrays.copyOf(_tasks, Math.max(count, 2 * old));
+            for (int i = old; i < _tasks.length; i++) {
+                _tasks[i] = new Sample();
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            Sample t = _tasks[i];
+            t.reinitialize();
+            t.from = i * chunk;
+            t.to = Math.min(n, t.from + chunk);
+        }
+        _sampleAll.reinitialize();
+        _sampleAll.count = count;
+        p.invoke(_sampleAll);
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool();
+        }
+        return pool;
+    }
+
+    /**
+     * Samples the players _batch[from] to _batch[to] (exclusive). Reused,
+     * see update.
+     */
+    private class Sample extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private int from, to;
+
+        @Override
+        protected void compute() {
+            for (int i = from; i < to; i++) {
+                _batch[i].samplePose();
             }
         }
     }
 
-    public boolean playAll() {
-        if (_figures.size() > 0) {
+    /**
+     * Runs the first count of _tasks, one in the calling thread. Reused,
+     * see update.
+     */
+    private class SampleAll extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private int count;
+
+        @Override
+        protected void compute() {
+            for (int i = 1; i < count; i++) {
+                _tasks[i].fork();
+            }
+            _tasks[0].invoke();
+            for (int i = count - 1; i > 0; i--) {
+                _tasks[i].join();
+            }
+        }
+    }
+
+    public synchronized boolean playAll() {
+        if (_figures.size() > 0 || _crowds.size() > 0) {
             for (Figure f : _figures) {
                 f.getPlayer().setIsPlaying(true);
             }
+            for (Crowd c : _crowds) {
+                c.setIsPlaying(true);
+            }
+            if (_clock != null) {
+                _clock.wakeUp();
+            }
             return true;
         } else {
             return false;
         }
     }
 
-    public void pauseAll() {
+    public synchronized void pauseAll() {
         for (Figure f : _figures) {
             f.getPlayer().setIsPlaying(false);
         }
+        for (Crowd c : _crowds) {
+            c.setIsPlaying(false);
+        }
     }
     
-    public void goToFrame(int frame) {
+    public synchronized void goToFrame(int frame) {
     	for (Figure f: _figures) {
     		f.getPlayer().gotoFrame(frame);
     	}
     }
 
-    public void stopAll() {
+    public synchronized void stopAll() {
         for (Figure f : _figures) {
             f.getPlayer().reset();
         }
+        for (Crowd c : _crowds) {
+            c.setIsPlaying(false);
+            c.gotoTime(0);
+        }
     }
 
-    public void frameForwardAll() {
+    public synchronized void frameForwardAll() {
         for (Figure f : _figures) {
             f.getPlayer().frameForward();
         }
     }
 
-    public void frameBackwardAll() {
+    public synchronized void frameBackwardAll() {
         for (Figure f : _figures) {
             f.getPlayer().frameBackward();
         }
     }
 
-    public void setFpsAll(float fps) {
+    public synchronized void setFpsAll(float fps) {
         for (Figure f : _figures) {
             f.getPlayer().setPlaybackFps(fps);
         }
@@ -0,0 +1,226 @@
+package mocap.figure;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.vecmath.Point3d;
+import javax.vecmath.Quat4f;
+import javax.vecmath.Vector3f;
+
+/**
+ * Computes world joint positions and rotations from a Skeleton and an
+ * AnimData with plain arithmetic, so it works without a display and
+ * without posing any Bone. The results are the ones the scene graph gives
+ * for the same pose (Bone.getWorldPosition), with the figure at the
+ * origin: a joint sits at its parent's position plus the offset rotated by
+ * the parent's world rotation; the root additionally moves by the scaled
+ * root translation plus the given offset.
+ *
+ * An instance keeps scratch arrays, so pose() does not allocate; use one
+ * instance per thread. The static getPositions methods pose many frames
+ * at once, splitting them across a fork-join pool.
+ */
+public class ForwardKinematics
+{
+	/** below this many frames per task the frames are not split further */
+	private static final int MIN_FRAMES = 256;
+
+	private static ForkJoinPool pool;
+
+	private final Skeleton skeleton;
+	// world rotation (x,y,z,w) and position (x,y,z) per joint
+	private final double[] rot, pos;
+	private final Quat4f q = new Quat4f();
+	private final Vector3f trans = new Vector3f();
+
+	public ForwardKinematics(Skeleton skeleton)
+	{
+		this.skeleton = skeleton;
+		rot = new double[4 * skeleton.getNumJoints()];
+		pos = new double[3 * skeleton.getNumJoints()];
+	}
+
+	public Skeleton getSkeleton() {
+		return skeleton;
+	}
+
+	private static synchronized ForkJoinPool getPool()
+	{
+		if (pool == null)
+			pool = new ForkJoinPool();
+		return pool;
+	}
+
+	/**
+	 * @return positions of all joints in all frames, x,y,z per joint and
+	 *   frame: index 3 * (frame * joints + joint)
+	 */
+	public static float[] getPositions(Skeleton skeleton, AnimData data)
+	{
+		long size = 3L * data.getNumFrames() * skeleton.getNumJoints();
+		if (size > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("too many frames for one array: "
+					+ data.getNumFrames());
+		float[] positions = new float[(int) size];
+		getPositions(skeleton, data, 0, data.getNumFrames(), null, positions);
+		return positions;
+	}
+
+	/**
+	 * Poses the frames [start, end) in parallel.
+	 *
+	 * @param offset added to the root position, may be null
+	 * @param positions gets x,y,z per joint and frame, frame start first
+	 */
+	public static void getPositions(Skeleton skeleton, AnimData data,
+			int start, int end, Point3d offset, float[] positions)
+	{
+		if (positions.length < 3L * (end - start) * skeleton.getNumJoints())
+			throw new IllegalArgumentException("array too small for "
+					+ (end - start) + " frames");
+		getPool().invoke(new Frames(skeleton, data, start, end, start,
+				offset, positions));
+	}
+
+	private static class Frames extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		private final Skeleton skeleton;
+		private final AnimData data;
+		private final int from, to, first;
+		private final Point3d offset;
+		private final float[] positions;
+
+		Frames(Skeleton skeleton, AnimData data, int from, int to, int first,
+				Point3d offset, float[] positions)
+		{
+			this.skeleton = skeleton;
+			this.data = data;
+			this.from = from;
+			this.to = to;
+			this.first = first;
+			this.offset = offset;
+			this.positions = positions;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (to - from <= MIN_FRAMES) {
+				ForwardKinematics fk = new ForwardKinematics(skeleton);
+				int stride = 3 * skeleton.getNumJoints();
+				for (int f = from; f < to; f++)
+					fk.pose(data, f, offset, positions, (f - first) * stride, null, 0);
+			} else {
+				int mid = (from + to) >>> 1;
+				invokeAll(new Frames(skeleton, data, from, mid, first, offset, positions),
+						new Frames(skeleton, data, mid, to, first, offset, positions));
+			}
+		}
+	}
+
+	/**
+	 * Same as the long form, without offset, writing from index 0.
+	 */
+	public void pose(AnimData data, int frame, float[] positions, float[] rotations)
+	{
+		pose(data, frame, null, positions, 0, rotations, 0);
+	}
+
+	/**
+	 * @param offset added to the root position (like the figure offset),
+	 *   may be null
+	 * @param positions gets x,y,z per joint, starting at posIndex
+	 * @param rotations gets the world rotation, x,y,z,w per joint, starting
+	 *   at rotIndex; may be null
+	 */
+	public void pose(AnimData data, int frame, Point3d offset,
+			float[] positions, int posIndex, float[] rotations, int rotIndex)
+	{
+		int n = skeleton.getNumJoints();
+		for (int j = 0; j < n; j++)
+		{
+			int p = skeleton.getParent(j);
+			double ox = skeleton.getOffset(j, 0);
+			double oy = skeleton.getOffset(j, 1);
+			double oz = skeleton.getOffset(j, 2);
+			int r = 4 * j;
+			int d = skeleton.getDataIndex(j);
+			if (p < 0)
+			{
+				if (d >= 0) {
+					if (data.getBoneTrans(frame, trans) != null) {
+						double s = skeleton.getScale();
+						ox += trans.x * s;
+						oy += trans.y * s;
+						oz += trans.z * s;
+					}
+					if (offset != null) {
+						ox += offset.x;
+						oy += offset.y;
+						oz += offset.z;
+					}
+				}
+				pos[0] = ox;
+				pos[1] = oy;
+				pos[2] = oz;
+				rot[0] = 0;
+				rot[1] = 0;
+				rot[2] = 0;
+				rot[3] = 1;
+			}
+			else
+			{
+				// offset rotated by the parent: v + w*t + u x t, t = 2 u x v
+				int pr = 4 * p, pp = 3 * p;
+				double ux = rot[pr], uy = rot[pr + 1], uz = rot[pr + 2], uw = rot[pr + 3];
+				double tx = 2 * (uy * oz - uz * oy);
+				double ty = 2 * (uz * ox - ux * oz);
+				double tz = 2 * (ux * oy - uy * ox);
+				pos[3*j] = pos[pp] + ox + uw * tx + (uy * tz - uz * ty);
+				pos[3*j + 1] = pos[pp + 1] + oy + uw * ty + (uz * tx - ux * tz);
+				pos[3*j + 2] = pos[pp + 2] + oz + uw * tz + (ux * ty - uy * tx);
+				rot[r] = ux;
+				rot[r + 1] = uy;
+				rot[r + 2] = uz;
+				rot[r + 3] = uw;
+			}
+			if (d >= 0)
+				rotate(data, d, frame, r);
+
+			int pi = posIndex + 3 * j;
+			positions[pi] = (float) pos[3*j];
+			positions[pi + 1] = (float) pos[3*j + 1];
+			positions[pi + 2] = (float) pos[3*j + 2];
+			if (rotations != null) {
+				int ri = rotIndex + r;
+				rotations[ri] = (float) rot[r];
+				rotations[ri + 1] = (float) rot[r + 1];
+				rotations[ri + 2] = (float) rot[r + 2];
+				rotations[ri + 3] = (float) rot[r + 3];
+			}
+		}
+	}
+
+	/**
+	 * Multiplies the rotation at r with the (normalized) rotation of the
+	 * bone in the frame.
+	 */
+	private void rotate(AnimData data, int boneIndex, int frame, int r)
+	{
+		data.getBoneRot(boneIndex, frame, q);
+		double bx = q.x, by = q.y, bz = q.z, bw = q.w;
+		double norm = Math.sqrt(bx*bx + by*by + bz*bz + bw*bw);
+		if (norm > 0) {
+			bx /= norm;
+			by /= norm;
+			bz /= norm;
+			bw /= norm;
+		}
+		double ax = rot[r], ay = rot[r + 1], az = rot[r + 2], aw = rot[r + 3];
+		rot[r] = aw * bx + ax * bw + ay * bz - az * by;
+		rot[r + 1] = aw * by - ax * bz + ay * bw + az * bx;
+		rot[r + 2] = aw * bz + ax * by - ay * bx + az * bw;
+		rot[r + 3] = aw * bw - ax * bx - ay * by - az * bz;
+	}
+}
@@ -13,16 +13,24 @@ import javax.vecmath.Color3f;
 import javax.vecmath.Point3d;
 
 public class JointPosLine {
+	private static final int CHUNK = 8192; // frames posed at once
+	
 	private String boneToFollow;
-	private Bone skeleton;
+	private Skeleton skeleton;
 	private AnimData data;
+	private Point3d offset;
 	
 	private List<Point3d> pts = new ArrayList<Point3d>();
 	
-	public JointPosLine(Bone skeleton, String boneToFollow, AnimData data) {
+	/**
+	 * @param offset of the figure, added to the trail; may be null
+	 */
+	public JointPosLine(Skeleton skeleton, AnimData data, Point3d offset,
+			String boneToFollow) {
 		this.skeleton = skeleton;
-		this.boneToFollow = boneToFollow;
 		this.data = data;
+		this.offset = offset;
+		this.boneToFollow = boneToFollow;
 		
 		initializeLinePoints();
 	}
@@ -31,37 +39,30 @@ public class JointPosLine {
 	{
 		pts.clear();
 		
-		List<Bone> bones = new ArrayList<Bone>();
-		skeleton.collectBones(bones); 
-		
-		Point3d offset = new Point3d(); 
+		// computed without posing the scene graph
+		int joint = skeleton.indexOf(boneToFollow);
+		if (joint < 0)
+			return pts;
+		int stride = 3 * skeleton.getNumJoints();
 		
+		// in chunks, each posed in parallel, so that long clips need little
+		// memory
 		int numFrames = data.getNumFrames();
-		for (int f = 0; f < numFrames; f++)
+		float[] pos = new float[Math.min(CHUNK, numFrames) * stride];
+		for (int start = 0; start < numFrames; start += CHUNK)
 		{
-			for (int b = 0; b < bones.size(); b++)
+			int end = Math.min(start + CHUNK, numFrames);
+			ForwardKinematics.getPositions(skeleton, data, start, end, offset, pos);
+			for (int f = start; f < end; f++)
 			{
-				Bone bone = bones.get(b);
-				int bi = bone.getIndex();
-				if (bi == 0)
-					bone.setPose(data.getBoneTransData()[f], data.getBoneRotData(bi)[f], offset);
-				else
-					bone.setPose(data.getBoneRotData(bi)[f], offset);
+				int i = (f - start) * stride + 3 * joint;
+				Point3d thisPos = new Point3d(pos[i], pos[i + 1], pos[i + 2]);
+				pts.add(thisPos);
 				
-				// if this the bone we requested, add the position and move onto the next frame
-				if (bone.getName().compareTo(boneToFollow) == 0)
-				{
-					Point3d thisPos = new Point3d();
-					bone.getWorldPosition(thisPos);
+				// double the points up 
+				if (f != 0 && f != numFrames - 1)
 					pts.add(thisPos);
-					
-					// double the points up 
-					if (f != 0 && f != numFrames - 1)
-						pts.add(thisPos);
-					
-					break;
-				}
-			}				
+			}
 		}
 		
 		return pts;
@@ -0,0 +1,223 @@
+package mocap.figure;
+
+import java.util.Arrays;
+
+import javax.vecmath.Quat4f;
+import javax.vecmath.Vector3f;
+
+/**
+ * AnimData made of sparse key tracks, see KeyframeReducer. A frame between
+ * two keys is rebuilt by slerp (rotations) or linear interpolation (root
+ * translation).
+ *
+ * Finding the keys around a frame is a binary search over the key frames of
+ * the track. Each track remembers the last key it was sampled at, so that
+ * playback, which mostly asks for the same or the next key pair, usually
+ * skips the search.
+ */
+public class KeyframeAnimData extends AnimData
+{
+	// per bone: frame numbers of the keys and the keys (x,y,z,w per key)
+	private final int[][] rotFrames;
+	private final float[][] rotKeys;
+	private final int[] transFrames;
+	private final float[] transKeys;
+
+	// last key index sampled per track, the translation track comes last
+	private final int[] hint;
+
+	KeyframeAnimData(int frames, int[][] rotFrames, float[][] rotKeys,
+			int[] transFrames, float[] transKeys)
+	{
+		super(rotFrames.length);
+		setNumFrames(frames);
+		this.rotFrames = rotFrames;
+		this.rotKeys = rotKeys;
+		this.transFrames = transFrames;
+		this.transKeys = transKeys;
+		hint = new int[rotFrames.length + 1];
+	}
+
+	/**
+	 * @return number of keys over all tracks
+	 */
+	public int getNumKeys()
+	{
+		int n = transFrames != null ? transFrames.length : 0;
+		for (int[] track : rotFrames)
+			n += track.length;
+		return n;
+	}
+
+	/**
+	 * @return number of keys of one bone
+	 */
+	public int getNumKeys(int boneIndex) {
+		return rotFrames[boneIndex].length;
+	}
+
+	/**
+	 * @return size of the data with every frame stored divided by the size
+	 *   of the key tracks (including their frame numbers)
+	 */
+	public float getCompressionRatio()
+	{
+		long frames = getNumFrames();
+		long before = 4 * 4 * frames * rotFrames.length;
+		long after = 0;
+		for (int[] track : rotFrames)
+			after += (4 + 4 * 4) * track.length;
+		if (transFrames != null) {
+			before += 4 * 3 * frames;
+			after += (4 + 4 * 3) * transFrames.length;
+		}
+		return after > 0 ? (float) before / after : 1;
+	}
+
+	/**
+	 * @return index k of the key with frames[k] <= frame < frames[k+1]
+	 *   (the last key for the last frame)
+	 */
+	private int findKey(int track, int[] frames, int frame)
+	{
+		int k = hint[track];
+		if (k >= frames.length || frames[k] > frame
+				|| (k + 1 < frames.length && frames[k + 1] <= frame)) {
+			// not the same key pair as last time, maybe the next one
+			k++;
+			if (k >= frames.length || frames[k] > frame
+					|| (k + 1 < frames.length && frames[k + 1] <= frame)) {
+				k = Arrays.binarySearch(frames, frame);
+				if (k < 0)
+					k = -k - 2;
+			}
+			hint[track] = k;
+		}
+		return k;
+	}
+
+	@Override
+	public Quat4f getBoneRot(int boneIndex, int frame, Quat4f q)
+	{
+		int[] frames = rotFrames[boneIndex];
+		float[] keys = rotKeys[boneIndex];
+		int k = findKey(boneIndex, frames, frame);
+		if (frames[k] == frame || k + 1 == frames.length) {
+			q.set(keys[4*k], keys[4*k + 1], keys[4*k + 2], keys[4*k + 3]);
+			return q;
+		}
+		float t = (float) (frame - frames[k]) / (frames[k + 1] - frames[k]);
+		slerp(keys, k, k + 1, t, q);
+		return q;
+	}
+
+	/**
+	 * Spherical interpolation between the quaternions i and j of an x,y,z,w
+	 * array, like Quat4f.interpolate but without scratch objects.
+	 */
+	static void slerp(float[] keys, int i, int j, float t, Quat4f q)
+	{
+		int a = 4 * i, b = 4 * j;
+		double dot = keys[a]*keys[b] + keys[a+1]*keys[b+1]
+				+ keys[a+2]*keys[b+2] + keys[a+3]*keys[b+3];
+		double sign = 1;
+		if (dot < 0) {
+			dot = -dot;
+			sign = -1;
+		}
+		double s1, s2;
+		if (1 - dot > 1e-6) {
+			double om = Math.acos(dot);
+			double sinom = Math.sin(om);
+			s1 = Math.sin((1 - t) * om) / sinom;
+			s2 = Math.sin(t * om) / sinom;
+		} else {
+			s1 = 1 - t;
+			s2 = t;
+		}
+		s1 *= sign;
+		q.x = (float) (s1 * keys[a] + s2 * keys[b]);
+		q.y = (float) (s1 * keys[a+1] + s2 * keys[b+1]);
+		q.z = (float) (s1 * keys[a+2] + s2 * keys[b+2]);
+		q.w = (float) (s1 * keys[a+3] + s2 * keys[b+3]);
+	}
+
+	@Override
+	public boolean hasTranslations() {
+		return transFrames != null;
+	}
+
+	@Override
+	public Vector3f getBoneTrans(int frame, Vector3f v)
+	{
+		if (transFrames == null)
+			return null;
+		int k = findKey(rotFrames.length, transFrames, frame);
+		int a = 3 * k;
+		if (transFrames[k] == frame || k + 1 == transFrames.length) {
+			v.set(transKeys[a], transKeys[a + 1], transKeys[a + 2]);
+			return v;
+		}
+		float t = (float) (frame - transFrames[k])
+				/ (transFrames[k + 1] - transFrames[k]);
+		int b = a + 3;
+		v.x = transKeys[a] + t * (transKeys[b] - transKeys[a]);
+		v.y = transKeys[a + 1] + t * (transKeys[b + 1] - transKeys[a + 1]);
+		v.z = transKeys[a + 2] + t * (transKeys[b + 2] - transKeys[a + 2]);
+		return v;
+	}
+
+	/**
+	 * @return the rebuilt rotations of every frame (a new array)
+	 */
+	@Override
+	public float[] getBoneRotArray(int boneIndex)
+	{
+		return rebuildRotations(boneIndex, 0, getNumFrames());
+	}
+
+	/**
+	 * @return the rebuilt translations of every frame (a new array)
+	 */
+	@Override
+	public float[] getBoneTransArray()
+	{
+		return transFrames != null ? rebuildTranslations(0, getNumFrames()) : null;
+	}
+
+	private float[] rebuildRotations(int boneIndex, int start, int end)
+	{
+		float[] rot = new float[4 * (end - start)];
+		Quat4f q = new Quat4f();
+		for (int f = 0; f < end - start; f++)
+		{
+			getBoneRot(boneIndex, start + f, q);
+			rot[4*f] = q.x;
+			rot[4*f + 1] = q.y;
+			rot[4*f + 2] = q.z;
+			rot[4*f + 3] = q.w;
+		}
+		return rot;
+	}
+
+	private float[] rebuildTranslations(int start, int end)
+	{
+		float[] trans = new float[3 * (end - start)];
+		Vector3f v = new Vector3f();
+		for (int f = 0; f < end - start; f++)
+		{
+			getBoneTrans(start + f, v);
+			trans[3*f] = v.x;
+			trans[3*f + 1] = v.y;
+			trans[3*f + 2] = v.z;
+		}
+		return trans;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("<KeyframeAnimData frames:%d keys:%d ratio:%.2f>",
+				getNumFrames(), getNumKeys(), getCompressionRatio());
+	}
+}
@@ -0,0 +1,183 @@
+package mocap.figure;
+
+import javax.vecmath.Quat4f;
+
+/**
+ * Removes the frames of a clip that can be rebuilt from their neighbours
+ * within a tolerance: by slerp for the rotations and by linear
+ * interpolation for the root translation. Each bone (and the translation)
+ * gets its own sparse key track, so a joint that hardly moves costs almost
+ * nothing. The result is a KeyframeAnimData.
+ *
+ * The reduction is greedy: starting from a key, the next key is put as far
+ * away as possible while every frame in between still lies within the
+ * tolerance. At most maxGap frames are spanned by one pair of keys, which
+ * bounds the work per frame.
+ */
+public class KeyframeReducer
+{
+	public static final int DEFAULT_MAX_GAP = 120;
+
+	private final double maxAngle;
+	private final double maxDistance;
+	private int maxGap = DEFAULT_MAX_GAP;
+
+	// scratch objects, a reducer is not meant to be shared between threads
+	private final Quat4f q = new Quat4f(), rebuilt = new Quat4f();
+
+	/**
+	 * @param maxAngle tolerance for the rotations (radians)
+	 * @param maxDistance tolerance for the root translation, in the units of
+	 *   the data
+	 */
+	public KeyframeReducer(double maxAngle, double maxDistance)
+	{
+		this.maxAngle = maxAngle;
+		this.maxDistance = maxDistance;
+	}
+
+	public void setMaxGap(int maxGap) {
+		this.maxGap = Math.max(maxGap, 1);
+	}
+
+	public KeyframeAnimData reduce(AnimData data)
+	{
+		int frames = data.getNumFrames();
+		int[][] rotFrames = new int[data.getNumBones()][];
+		float[][] rotKeys = new float[data.getNumBones()][];
+		for (int i = 0; i < rotFrames.length; i++)
+		{
+			float[] rot = data.getBoneRotArray(i);
+			rotFrames[i] = reduceRotations(rot, frames);
+			rotKeys[i] = pick(rot, rotFrames[i], 4);
+		}
+
+		int[] transFrames = null;
+		float[] transKeys = null;
+		if (data.hasTranslations())
+		{
+			float[] trans = data.getBoneTransArray();
+			transFrames = reduceTranslations(trans, frames);
+			transKeys = pick(trans, transFrames, 3);
+		}
+		KeyframeAnimData ret = new KeyframeAnimData(frames, rotFrames, rotKeys,
+				transFrames, transKeys);
+		ret.setFps(data.getFps());
+		return ret;
+	}
+
+	private int[] reduceRotations(float[] rot, int frames)
+	{
+		int[] keys = new int[frames];
+		int n = 0;
+		if (frames == 0)
+			return keys;
+		int key = 0;
+		keys[n++] = key;
+		while (key < frames - 1)
+		{
+			int next = key + 1;
+			while (next + 1 < frames && next + 1 - key <= maxGap
+					&& rotationsFit(rot, key, next + 1))
+				next++;
+			keys[n++] = next;
+			key = next;
+		}
+		return trim(keys, n);
+	}
+
+	/**
+	 * @return true if all frames between a and b are within the tolerance
+	 *   of the slerp between a and b (done the way KeyframeAnimData does it)
+	 */
+	private boolean rotationsFit(float[] rot, int a, int b)
+	{
+		for (int f = a + 1; f < b; f++)
+		{
+			KeyframeAnimData.slerp(rot, a, b, (float) (f - a) / (b - a), rebuilt);
+			get(rot, f, q);
+			if (angle(q, rebuilt) > maxAngle)
+				return false;
+		}
+		return true;
+	}
+
+	private int[] reduceTranslations(float[] trans, int frames)
+	{
+		int[] keys = new int[frames];
+		int n = 0;
+		if (frames == 0)
+			return keys;
+		int key = 0;
+		keys[n++] = key;
+		while (key < frames - 1)
+		{
+			int next = key + 1;
+			while (next + 1 < frames && next + 1 - key <= maxGap
+					&& translationsFit(trans, key, next + 1))
+				next++;
+			keys[n++] = next;
+			key = next;
+		}
+		return trim(keys, n);
+	}
+
+	private boolean translationsFit(float[] trans, int a, int b)
+	{
+		double max2 = maxDistance * maxDistance;
+		for (int f = a + 1; f < b; f++)
+		{
+			float t = (float) (f - a) / (b - a);
+			double d2 = 0;
+			for (int k = 0; k < 3; k++)
+			{
+				float v = trans[3*a + k] + t * (trans[3*b + k] - trans[3*a + k]);
+				double d = v - trans[3*f + k];
+				d2 += d * d;
+			}
+			if (d2 > max2)
+				return false;
+		}
+		return true;
+	}
+
+	private static void get(float[] rot, int f, Quat4f q)
+	{
+		q.x = rot[4*f];
+		q.y = rot[4*f + 1];
+		q.z = rot[4*f + 2];
+		q.w = rot[4*f + 3];
+	}
+
+	/**
+	 * @return angle (radians) of the rotation between two quaternions; both
+	 *   are normalized, since near 0 acos turns their small length errors
+	 *   (from float math) into an angle larger than fine tolerances
+	 */
+	static double angle(Quat4f a, Quat4f b)
+	{
+		double dot = dot(a, b) / Math.sqrt(dot(a, a) * dot(b, b));
+		return 2 * Math.acos(Math.min(1, Math.abs(dot)));
+	}
+
+	private static double dot(Quat4f a, Quat4f b)
+	{
+		return (double) a.x*b.x + (double) a.y*b.y + (double) a.z*b.z
+				+ (double) a.w*b.w;
+	}
+
+	private static float[] pick(float[] values, int[] frames, int stride)
+	{
+		float[] keys = new float[stride * frames.length];
+		for (int k = 0; k < frames.length; k++)
+			System.arraycopy(values, stride * frames[k], keys, stride * k, stride);
+		return keys;
+	}
+
+	private static int[] trim(int[] a, int n)
+	{
+		int[] ret = new int[n];
+		System.arraycopy(a, 0, ret, 0, n);
+		return ret;
+	}
+}
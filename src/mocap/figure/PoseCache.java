@@ -0,0 +1,171 @@
+package mocap.figure;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.vecmath.Point3d;
+import javax.vecmath.Quat4f;
+
+/**
+ * World positions and rotations of every joint of a clip, computed with
+ * ForwardKinematics when first asked for, a block of frames at a time.
+ * Blocks are dropped least recently used first once the memory budget is
+ * exceeded. A query is a block lookup plus an array read.
+ *
+ * The poses depend on the root scale and on the offset of the figure;
+ * when either is changed (setScale, setOffset) the cache is cleared.
+ *
+ * Meant for world space queries; posing a figure reads the AnimData
+ * (MocapPlayer), and whole-clip paths such as a joint's trail are faster
+ * with ForwardKinematics.getPositions.
+ */
+public class PoseCache
+{
+	public static final int DEFAULT_BLOCK_SIZE = 256;
+	public static final long DEFAULT_BUDGET = 32L << 20;
+
+	private static class Block
+	{
+		final float[] positions; // x,y,z per joint and frame
+		final float[] rotations; // x,y,z,w per joint and frame
+
+		Block(int frames, int joints)
+		{
+			positions = new float[3 * joints * frames];
+			rotations = new float[4 * joints * frames];
+		}
+	}
+
+	private final Skeleton skeleton;
+	private final AnimData data;
+	private final int blockSize;
+	private final long blockBytes;
+	private final long budget;
+	private final ForwardKinematics fk;
+	private Point3d offset;
+
+	private final LinkedHashMap<Integer, Block> blocks;
+	private Block lastBlock;
+	private int lastIndex = -1;
+
+	public PoseCache(Skeleton skeleton, AnimData data)
+	{
+		this(skeleton, data, DEFAULT_BLOCK_SIZE, DEFAULT_BUDGET);
+	}
+
+	/**
+	 * @param blockSize frames computed at once
+	 * @param budget bytes the blocks may take (at least one block is kept)
+	 */
+	public PoseCache(Skeleton skeleton, AnimData data, int blockSize, long budget)
+	{
+		this.skeleton = skeleton;
+		this.data = data;
+		this.blockSize = blockSize;
+		this.budget = budget;
+		blockBytes = 4L * (3 + 4) * skeleton.getNumJoints() * blockSize;
+		fk = new ForwardKinematics(skeleton);
+		blocks = new LinkedHashMap<Integer, Block>(16, .75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Block> e) {
+				return size() > 1 && size() * blockBytes > PoseCache.this.budget;
+			}
+		};
+	}
+
+	public Skeleton getSkeleton() {
+		return skeleton;
+	}
+
+	public AnimData getData() {
+		return data;
+	}
+
+	/**
+	 * Sets the root scale of the skeleton, clearing the cache if it changes.
+	 */
+	public synchronized void setScale(double scale)
+	{
+		if (scale != skeleton.getScale()) {
+			skeleton.setScale(scale);
+			clear();
+		}
+	}
+
+	/**
+	 * Sets the offset added to the root (the figure offset, may be null),
+	 * clearing the cache if it changes.
+	 */
+	public synchronized void setOffset(Point3d offset)
+	{
+		if (offset == null ? this.offset != null : !offset.equals(this.offset)) {
+			this.offset = offset != null ? new Point3d(offset) : null;
+			clear();
+		}
+	}
+
+	public synchronized void clear()
+	{
+		blocks.clear();
+		lastBlock = null;
+		lastIndex = -1;
+	}
+
+	/**
+	 * @return bytes taken by the blocks in memory
+	 */
+	public synchronized long getBytesUsed() {
+		return blocks.size() * blockBytes;
+	}
+
+	private Block getBlock(int frame)
+	{
+		if (frame < 0 || frame >= data.getNumFrames())
+			throw new IndexOutOfBoundsException("frame " + frame + " of "
+					+ data.getNumFrames());
+		int b = frame / blockSize;
+		if (b == lastIndex)
+			return lastBlock;
+		Block block = blocks.get(b);
+		if (block == null) {
+			int start = b * blockSize;
+			int end = Math.min(start + blockSize, data.getNumFrames());
+			int joints = skeleton.getNumJoints();
+			block = new Block(end - start, joints);
+			for (int f = start; f < end; f++)
+				fk.pose(data, f, offset, block.positions, 3 * joints * (f - start),
+						block.rotations, 4 * joints * (f - start));
+			blocks.put(b, block);
+		}
+		lastBlock = block;
+		lastIndex = b;
+		return block;
+	}
+
+	/**
+	 * @param p gets the world position of the joint in the frame
+	 * @return p
+	 */
+	public synchronized Point3d getPosition(int joint, int frame, Point3d p)
+	{
+		Block block = getBlock(frame);
+		int i = 3 * (skeleton.getNumJoints() * (frame % blockSize) + joint);
+		p.set(block.positions[i], block.positions[i + 1], block.positions[i + 2]);
+		return p;
+	}
+
+	/**
+	 * @param q gets the world rotation of the joint in the frame
+	 * @return q
+	 */
+	public synchronized Quat4f getRotation(int joint, int frame, Quat4f q)
+	{
+		Block block = getBlock(frame);
+		int i = 4 * (skeleton.getNumJoints() * (frame % blockSize) + joint);
+		q.set(block.rotations[i], block.rotations[i + 1], block.rotations[i + 2],
+				block.rotations[i + 3]);
+		return q;
+	}
+}
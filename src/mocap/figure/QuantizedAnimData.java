@@ -0,0 +1,198 @@
+package mocap.figure;
+
+import javax.vecmath.Quat4f;
+import javax.vecmath.Vector3f;
+
+/**
+ * AnimData with compressed rotations: every quaternion is packed into 48
+ * bits ("smallest three"). The largest component is left out, as it follows
+ * from the other three for a unit quaternion; since q and -q are the same
+ * rotation it can be made positive. The three remaining components lie in
+ * [-1/sqrt(2), 1/sqrt(2)] and are stored with 15 bits each, the 2 bit index
+ * of the dropped component goes into the spare top bits. Translations are
+ * kept as floats.
+ *
+ * Decoding into a caller-supplied Quat4f (getBoneRot with three arguments)
+ * does not allocate. The compression ratio and the largest angular error
+ * of the clip are measured when it is compressed.
+ */
+public class QuantizedAnimData extends AnimData
+{
+	private static final double RANGE = Math.sqrt(0.5);
+	private static final int BITS = 15;
+	private static final int MAX = (1 << BITS) - 1;
+	private static final int MASK = MAX;
+	private static final float STEP = (float) (2 * RANGE / MAX);
+	private static final float MIN = (float) -RANGE;
+
+	private final short[][] rotations; // 3 shorts per frame
+	private final float[] translations;
+	private final double maxError;
+
+	/**
+	 * Compresses the given data.
+	 */
+	public QuantizedAnimData(AnimData data)
+	{
+		super(data.getNumBones());
+		int frames = data.getNumFrames();
+		setNumFrames(frames);
+		setFps(data.getFps());
+		rotations = new short[data.getNumBones()][];
+		translations = data.hasTranslations() ? data.getBoneTransArray() : null;
+
+		Quat4f q = new Quat4f(), decoded = new Quat4f();
+		double error = 0;
+		for (int i = 0; i < rotations.length; i++)
+		{
+			short[] packed = new short[3 * frames];
+			for (int f = 0; f < frames; f++)
+			{
+				data.getBoneRot(i, f, q);
+				encode(q, packed, 3 * f);
+				decode(packed, 3 * f, decoded);
+				error = Math.max(error, angle(q, decoded));
+			}
+			rotations[i] = packed;
+		}
+		maxError = error;
+	}
+
+	private static void encode(Quat4f q, short[] packed, int offset)
+	{
+		float[] c = { q.x, q.y, q.z, q.w };
+		float norm = (float) Math.sqrt(c[0]*c[0] + c[1]*c[1] + c[2]*c[2] + c[3]*c[3]);
+		int largest = 0;
+		for (int k = 1; k < 4; k++)
+			if (Math.abs(c[k]) > Math.abs(c[largest]))
+				largest = k;
+		// q and -q are the same rotation, so the dropped one can be positive
+		float scale = (c[largest] < 0 ? -1 : 1) / norm;
+
+		int n = 0;
+		int[] v = new int[3];
+		for (int k = 0; k < 4; k++)
+			if (k != largest)
+				v[n++] = quantize(c[k] * scale);
+		packed[offset] = (short) ((largest >> 1) << BITS | v[0]);
+		packed[offset + 1] = (short) ((largest & 1) << BITS | v[1]);
+		packed[offset + 2] = (short) v[2];
+	}
+
+	private static int quantize(float v)
+	{
+		int n = Math.round((v - MIN) / STEP);
+		return Math.max(0, Math.min(MAX, n));
+	}
+
+	private static void decode(short[] packed, int offset, Quat4f q)
+	{
+		int s0 = packed[offset] & 0xffff;
+		int s1 = packed[offset + 1] & 0xffff;
+		int largest = (s0 >> BITS) << 1 | (s1 >> BITS);
+		float a = (s0 & MASK) * STEP + MIN;
+		float b = (s1 & MASK) * STEP + MIN;
+		float c = (packed[offset + 2] & MASK) * STEP + MIN;
+		float d = (float) Math.sqrt(Math.max(0, 1 - a*a - b*b - c*c));
+		switch (largest) {
+		case 0: q.x = d; q.y = a; q.z = b; q.w = c; break;
+		case 1: q.x = a; q.y = d; q.z = b; q.w = c; break;
+		case 2: q.x = a; q.y = b; q.z = d; q.w = c; break;
+		default: q.x = a; q.y = b; q.z = c; q.w = d; break;
+		}
+	}
+
+	/**
+	 * @return angle (radians) of the rotation between a and b; computed in
+	 *   double and with both normalized, as near 0 acos turns any rounding
+	 *   or length error of the dot product into a much larger angle
+	 */
+	private static double angle(Quat4f a, Quat4f b)
+	{
+		double na = Math.sqrt(dot(a, a)), nb = Math.sqrt(dot(b, b));
+		double dot = dot(a, b) / (na * nb);
+		return 2 * Math.acos(Math.min(1, Math.abs(dot)));
+	}
+
+	private static double dot(Quat4f a, Quat4f b)
+	{
+		return (double) a.x*b.x + (double) a.y*b.y + (double) a.z*b.z
+				+ (double) a.w*b.w;
+	}
+
+	/**
+	 * @return largest angle (radians) between an original and a decoded
+	 *   rotation of this clip
+	 */
+	public double getMaxAngularError() {
+		return maxError;
+	}
+
+	/**
+	 * @return size of the uncompressed (float) data divided by the size of
+	 *   this one
+	 */
+	public float getCompressionRatio()
+	{
+		long frames = getNumFrames();
+		long trans = translations != null ? 4 * 3 * frames : 0;
+		long before = 4 * 4 * frames * rotations.length + trans;
+		long after = 2 * 3 * frames * rotations.length + trans;
+		return after > 0 ? (float) before / after : 1;
+	}
+
+	@Override
+	public boolean hasTranslations() {
+		return translations != null;
+	}
+
+	@Override
+	public Quat4f getBoneRot(int boneIndex, int frame, Quat4f q)
+	{
+		decode(rotations[boneIndex], 3 * frame, q);
+		return q;
+	}
+
+	@Override
+	public Vector3f getBoneTrans(int frame, Vector3f v)
+	{
+		if (translations == null)
+			return null;
+		v.x = translations[3 * frame];
+		v.y = translations[3 * frame + 1];
+		v.z = translations[3 * frame + 2];
+		return v;
+	}
+
+	/**
+	 * @return the decoded rotations of the bone (a new array)
+	 */
+	@Override
+	public float[] getBoneRotArray(int boneIndex)
+	{
+		float[] rot = new float[4 * getNumFrames()];
+		Quat4f q = new Quat4f();
+		for (int f = 0; f < getNumFrames(); f++)
+		{
+			decode(rotations[boneIndex], 3 * f, q);
+			rot[4*f] = q.x;
+			rot[4*f + 1] = q.y;
+			rot[4*f + 2] = q.z;
+			rot[4*f + 3] = q.w;
+		}
+		return rot;
+	}
+
+	@Override
+	public float[] getBoneTransArray()
+	{
+		return translations;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("<QuantizedAnimData frames:%d ratio:%.2f max.error:%.5f deg>",
+				getNumFrames(), getCompressionRatio(), Math.toDegrees(maxError));
+	}
+}
@@ -0,0 +1,248 @@
+package mocap.figure;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import javax.vecmath.Quat4f;
+import javax.vecmath.Vector3f;
+
+/**
+ * A sequence of clips joined by cross-fades, built without copying the
+ * clips: it is a list of pieces, each referring to a frame range of a
+ * source clip (with an offset for the root translation), plus small
+ * materialized pieces for the blend windows. Appending costs only the
+ * blend window, finding the piece of a frame is a binary search over the
+ * piece start frames (skipped during playback, which mostly stays in the
+ * same piece).
+ *
+ * The cross-fade is the one DanceCreator has always used: the last
+ * overlap frames of the sequence are blended with the first overlap frames
+ * of the next clip (slerp resp. linear weights), and the next clip is
+ * moved so that its root continues from the frame before the window.
+ *
+ * Not thread-safe: do not append while another thread reads.
+ */
+public class SequenceAnimData extends AnimData
+{
+	private static class Piece
+	{
+		final AnimData source;
+		final int sourceStart;
+		int length;
+		final Vector3f shift; // added to the root translation, or null
+
+		Piece(AnimData source, int sourceStart, int length, Vector3f shift)
+		{
+			this.source = source;
+			this.sourceStart = sourceStart;
+			this.length = length;
+			this.shift = shift;
+		}
+	}
+
+	private final ArrayList<Piece> pieces = new ArrayList<Piece>();
+	private int[] starts = new int[16]; // first frame of each piece
+	private int hint = 0; // last piece sampled
+
+	public SequenceAnimData(AnimData first)
+	{
+		super(first.getNumBones());
+		setFps(first.getFps());
+		add(new Piece(first, 0, first.getNumFrames(), null));
+	}
+
+	/**
+	 * @return number of pieces (clips and blend windows)
+	 */
+	public int getNumPieces() {
+		return pieces.size();
+	}
+
+	/**
+	 * Cross-fades the end of the sequence into next.
+	 *
+	 * @param overlap number of frames blended, must be less than the
+	 *   number of frames of the sequence and not more than those of next
+	 */
+	public void append(AnimData next, int overlap)
+	{
+		int len = getNumFrames();
+		if (overlap >= len || overlap > next.getNumFrames())
+			throw new IllegalArgumentException("overlap " + overlap
+					+ " too long for " + len + " + " + next.getNumFrames() + " frames");
+		float[] blendWeights = new float[overlap];
+		for (int i = overlap; i > 0; i--) {
+			blendWeights[overlap - i] = ((float) i) / overlap;
+		}
+
+		Vector3f shift = getBoneTrans(len - overlap - 1);
+		shift.sub(next.getBoneTrans(0));
+
+		// blend window
+		AnimData window = new AnimData(getNumBones());
+		window.setFps(getFps());
+		window.setNumFrames(overlap);
+		float[] trans = new float[3 * overlap];
+		Vector3f vec1 = new Vector3f(), vec2 = new Vector3f();
+		for (int k = 0; k < overlap; k++)
+		{
+			getBoneTrans(len - overlap + k, vec1);
+			next.getBoneTrans(k, vec2);
+			vec2.add(shift);
+			float w1 = blendWeights[k], w2 = blendWeights[overlap - k - 1];
+			trans[3*k] = vec1.x * w1 + vec2.x * w2;
+			trans[3*k + 1] = vec1.y * w1 + vec2.y * w2;
+			trans[3*k + 2] = vec1.z * w1 + vec2.z * w2;
+		}
+		window.putBoneTransArray(trans);
+
+		Quat4f q1 = new Quat4f(), q2 = new Quat4f();
+		for (int i = 0; i < getNumBones(); i++)
+		{
+			float[] rot = new float[4 * overlap];
+			for (int k = 0; k < overlap; k++)
+			{
+				getBoneRot(i, len - overlap + k, q1);
+				next.getBoneRot(i, k, q2);
+				q1.interpolate(q2, 1 - blendWeights[k]);
+				rot[4*k] = q1.x;
+				rot[4*k + 1] = q1.y;
+				rot[4*k + 2] = q1.z;
+				rot[4*k + 3] = q1.w;
+			}
+			window.putBoneRotArray(i, rot);
+		}
+
+		truncate(len - overlap);
+		add(new Piece(window, 0, overlap, null));
+		if (next.getNumFrames() > overlap)
+			add(new Piece(next, overlap, next.getNumFrames() - overlap, shift));
+	}
+
+	private void add(Piece piece)
+	{
+		int n = pieces.size();
+		if (n == starts.length)
+			starts = Arrays.copyOf(starts, 2 * n);
+		starts[n] = getNumFrames();
+		pieces.add(piece);
+		setNumFrames(getNumFrames() + piece.length);
+	}
+
+	/**
+	 * Drops the frames from the given one on.
+	 */
+	private void truncate(int frames)
+	{
+		while (!pieces.isEmpty() && starts[pieces.size() - 1] >= frames)
+			pieces.remove(pieces.size() - 1);
+		int n = pieces.size();
+		if (n > 0)
+			pieces.get(n - 1).length = frames - starts[n - 1];
+		setNumFrames(frames);
+		hint = 0;
+	}
+
+	/**
+	 * @return index of the piece containing the frame
+	 */
+	private int findPiece(int frame)
+	{
+		if (frame < 0 || frame >= getNumFrames())
+			throw new IndexOutOfBoundsException("frame " + frame + " of "
+					+ getNumFrames());
+		int p = hint;
+		if (p < pieces.size() && starts[p] <= frame
+				&& frame < starts[p] + pieces.get(p).length)
+			return p;
+		p = Arrays.binarySearch(starts, 0, pieces.size(), frame);
+		if (p < 0)
+			p = -p - 2;
+		hint = p;
+		return p;
+	}
+
+	@Override
+	public Quat4f getBoneRot(int boneIndex, int frame, Quat4f q)
+	{
+		int p = findPiece(frame);
+		Piece piece = pieces.get(p);
+		return piece.source.getBoneRot(boneIndex,
+				piece.sourceStart + frame - starts[p], q);
+	}
+
+	@Override
+	public Vector3f getBoneTrans(int frame, Vector3f v)
+	{
+		int p = findPiece(frame);
+		Piece piece = pieces.get(p);
+		if (piece.source.getBoneTrans(piece.sourceStart + frame - starts[p], v) == null)
+			return null;
+		if (piece.shift != null)
+			v.add(piece.shift);
+		return v;
+	}
+
+	@Override
+	public boolean hasTranslations() {
+		return pieces.get(0).source.hasTranslations();
+	}
+
+	/**
+	 * @return a copy of the bone's rotations over the whole sequence
+	 */
+	@Override
+	public float[] getBoneRotArray(int boneIndex)
+	{
+		float[] rot = new float[4 * getNumFrames()];
+		Quat4f q = new Quat4f();
+		for (int f = 0; f < getNumFrames(); f++)
+		{
+			getBoneRot(boneIndex, f, q);
+			rot[4*f] = q.x;
+			rot[4*f + 1] = q.y;
+			rot[4*f + 2] = q.z;
+			rot[4*f + 3] = q.w;
+		}
+		return rot;
+	}
+
+	/**
+	 * @return a copy of the translations over the whole sequence
+	 */
+	@Override
+	public float[] getBoneTransArray()
+	{
+		if (!hasTranslations())
+			return null;
+		float[] trans = new float[3 * getNumFrames()];
+		Vector3f v = new Vector3f();
+		for (int f = 0; f < getNumFrames(); f++)
+		{
+			getBoneTrans(f, v);
+			trans[3*f] = v.x;
+			trans[3*f + 1] = v.y;
+			trans[3*f + 2] = v.z;
+		}
+		return trans;
+	}
+
+	@Override
+	public void putBoneRotArray(int index, float[] xyzw)
+	{
+		throw new UnsupportedOperationException("use append");
+	}
+
+	@Override
+	public void putBoneTransArray(float[] xyz)
+	{
+		throw new UnsupportedOperationException("use append");
+	}
+
+	@Override
+	public String toString()
+	{
+		return "<SequenceAnimData frames:" + getNumFrames() + " pieces:"
+				+ pieces.size() + ">";
+	}
+}
@@ -0,0 +1,113 @@
+package mocap.figure;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.vecmath.Vector3d;
+
+/**
+ * A skeleton flattened into arrays, for computations that should not need
+ * the Java3D scene graph (see ForwardKinematics). Joints are numbered so
+ * that a parent comes before its children; each has the index of its
+ * parent (-1 for the root), its offset from the parent and the index of
+ * its rotations in the AnimData (-1 for joints without channels).
+ *
+ * The scale is the one applied to the root translation (Bone.scale); the
+ * offsets are used as they are.
+ */
+public class Skeleton
+{
+	private final String[] names;
+	private final int[] parents;
+	private final float[] offsets; // x,y,z per joint
+	private final int[] dataIndices;
+	private double scale;
+
+	public Skeleton(String[] names, int[] parents, float[] offsets,
+			int[] dataIndices, double scale)
+	{
+		for (int j = 0; j < parents.length; j++)
+			if (parents[j] >= j)
+				throw new IllegalArgumentException("parent of joint " + j
+						+ " must come before it");
+		this.names = names;
+		this.parents = parents;
+		this.offsets = offsets;
+		this.dataIndices = dataIndices;
+		this.scale = scale;
+	}
+
+	/**
+	 * Flattens a Bone hierarchy, in collectBones order.
+	 */
+	public static Skeleton fromBone(Bone root)
+	{
+		List<Bone> bones = new ArrayList<Bone>();
+		root.collectBones(bones);
+		int n = bones.size();
+		String[] names = new String[n];
+		int[] parents = new int[n];
+		float[] offsets = new float[3 * n];
+		int[] dataIndices = new int[n];
+		for (int j = 0; j < n; j++)
+		{
+			Bone bone = bones.get(j);
+			names[j] = bone.getName();
+			parents[j] = bones.indexOf(bone.getParent());
+			Vector3d offset = bone.getOffset();
+			if (offset != null) {
+				offsets[3*j] = (float) offset.x;
+				offsets[3*j + 1] = (float) offset.y;
+				offsets[3*j + 2] = (float) offset.z;
+			}
+			dataIndices[j] = bone.getDOF() > 0 ? bone.getIndex() : -1;
+		}
+		return new Skeleton(names, parents, offsets, dataIndices, root.getScale());
+	}
+
+	public int getNumJoints() {
+		return parents.length;
+	}
+
+	/**
+	 * @return index of the parent joint, or -1 for the root
+	 */
+	public int getParent(int joint) {
+		return parents[joint];
+	}
+
+	public String getName(int joint) {
+		return names[joint];
+	}
+
+	/**
+	 * @return index of the joint with the given name, or -1
+	 */
+	public int indexOf(String name) {
+		return Arrays.asList(names).indexOf(name);
+	}
+
+	/**
+	 * @return component (0-2 for x,y,z) of the offset from the parent
+	 */
+	public float getOffset(int joint, int component) {
+		return offsets[3 * joint + component];
+	}
+
+	/**
+	 * @return index of the joint's rotations in the AnimData, or -1 if the
+	 *   joint has no channels
+	 */
+	public int getDataIndex(int joint) {
+		return dataIndices[joint];
+	}
+
+	public double getScale() {
+		return scale;
+	}
+
+	public void setScale(double scale) {
+		this.scale = scale;
+	}
+}
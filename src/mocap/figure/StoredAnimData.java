@@ -0,0 +1,136 @@
+package mocap.figure;
+
+import java.nio.FloatBuffer;
+
+import javax.vecmath.Quat4f;
+import javax.vecmath.Vector3f;
+
+/**
+ * AnimData whose frames live in a ClipStore. The layout of the buffer is
+ * the one AnimData uses on the heap: the rotations of every bone (x,y,z,w
+ * per frame) one after the other, then the translations (x,y,z per frame).
+ *
+ * The array accessors copy the data onto the heap. The data is read-only,
+ * the put methods throw UnsupportedOperationException.
+ */
+public class StoredAnimData extends AnimData
+{
+	private final ClipStore store;
+	private final int transOffset;
+	private volatile FloatBuffer values;
+
+	StoredAnimData(ClipStore store, FloatBuffer values, int bones, int frames,
+			boolean hasTranslations)
+	{
+		super(bones);
+		setNumFrames(frames);
+		this.store = store;
+		this.values = values;
+		transOffset = hasTranslations ? 4 * bones * frames : -1;
+	}
+
+	public ClipStore getStore() {
+		return store;
+	}
+
+	/**
+	 * Drops the buffer, its memory is given back when it is collected.
+	 *
+	 * @return the number of floats the clip took
+	 */
+	int release()
+	{
+		int size = values != null ? values.capacity() : 0;
+		values = null;
+		return size;
+	}
+
+	private FloatBuffer values()
+	{
+		FloatBuffer v = values;
+		if (v == null)
+			throw new IllegalStateException("clip has been released from its store");
+		return v;
+	}
+
+	/**
+	 * The frames of all clips lie side by side in the store, so a frame
+	 * out of range would quietly read another bone or clip.
+	 */
+	private int check(int frame)
+	{
+		if (frame < 0 || frame >= getNumFrames())
+			throw new IndexOutOfBoundsException("frame " + frame + " of "
+					+ getNumFrames());
+		return frame;
+	}
+
+	@Override
+	public boolean hasTranslations() {
+		return transOffset >= 0;
+	}
+
+	@Override
+	public Quat4f getBoneRot(int boneIndex, int frame, Quat4f q)
+	{
+		FloatBuffer v = values();
+		int i = 4 * (boneIndex * getNumFrames() + check(frame));
+		q.x = v.get(i);
+		q.y = v.get(i + 1);
+		q.z = v.get(i + 2);
+		q.w = v.get(i + 3);
+		return q;
+	}
+
+	@Override
+	public Vector3f getBoneTrans(int frame, Vector3f t)
+	{
+		if (transOffset < 0)
+			return null;
+		FloatBuffer v = values();
+		int i = transOffset + 3 * check(frame);
+		t.x = v.get(i);
+		t.y = v.get(i + 1);
+		t.z = v.get(i + 2);
+		return t;
+	}
+
+	@Override
+	public float[] getBoneRotArray(int boneIndex)
+	{
+		return copy(4 * boneIndex * getNumFrames(), 4 * getNumFrames());
+	}
+
+	@Override
+	public float[] getBoneTransArray()
+	{
+		return transOffset >= 0 ? copy(transOffset, 3 * getNumFrames()) : null;
+	}
+
+	@Override
+	public void putBoneRotArray(int index, float[] xyzw)
+	{
+		throw new UnsupportedOperationException("stored clips are read-only");
+	}
+
+	@Override
+	public void putBoneTransArray(float[] xyz)
+	{
+		throw new UnsupportedOperationException("stored clips are read-only");
+	}
+
+	private float[] copy(int offset, int length)
+	{
+		float[] a = new float[length];
+		FloatBuffer v = values().duplicate();
+		v.position(offset);
+		v.get(a);
+		return a;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "<StoredAnimData frames:" + getNumFrames() + ">";
+	}
+}
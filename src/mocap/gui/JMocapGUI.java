@@ -56,6 +56,7 @@ public class JMocapGUI extends JFrame
     private ControlPanel _control;
     private TransformGroup _cursorTG;
     private Point3d _cursorPos = new Point3d();
+    private AnimClock _clock;
 
     class PlaybackMenuListener implements ItemListener
     {
@@ -152,12 +153,28 @@ public class JMocapGUI extends JFrame
         setMenuBar(createMenubar(actionListener));
 
         // loadPreviousSkeleton();
-        AnimClock ac = new AnimClock(_jMocap.getFigureManager());
-        ac.start();
+        _clock = new AnimClock(_jMocap.getFigureManager());
+        _clock.start();
         pack();
         setVisible(true);
     }
 
+    /**
+     * Switches between updating the figures from the AnimClock and once per
+     * rendered frame.
+     */
+    void setRenderSynced(boolean synced)
+    {
+        // stop one driver before starting the other
+        if (synced) {
+            _clock.setActive(false);
+            _jMocap.setRenderSynced(true);
+        } else {
+            _jMocap.setRenderSynced(false);
+            _clock.setActive(true);
+        }
+    }
+
     public Point3d getCursorPos() {
         return _cursorPos;
     }
@@ -211,6 +228,20 @@ public class JMocapGUI extends JFrame
         mb.add(m);
 
         // ************** PLAYBACK MENU
+        m = new Menu("Playback");
+        mb.add(m);
+        CheckboxMenuItem cb = new CheckboxMenuItem("sync with rendering");
+        cb.addItemListener(new ItemListener()
+        {
+
+            @Override
+            public void itemStateChanged(ItemEvent e)
+            {
+                setRenderSynced(e.getStateChange() == ItemEvent.SELECTED);
+            }
+        });
+        m.add(cb);
+
         /*m = new Menu("Playback");
         PlaybackMenuListener pli = new PlaybackMenuListener();
         mb.add(m);
@@ -248,7 +279,7 @@ public class JMocapGUI extends JFrame
         mi = new MenuItem(MENU_RESET_CAM);
         mi.addActionListener(actionListener);
         m.add(mi);
-        CheckboxMenuItem cb = new CheckboxMenuItem("show coord", true);
+        cb = new CheckboxMenuItem("show coord", true);
         cb.addItemListener(li);
         m.add(cb);
         cb = new CheckboxMenuItem("show floor", true);
@@ -316,6 +347,38 @@ public class JMocapGUI extends JFrame
 				_jMocap.createDance(segs);
 			}
         	
+        });
+        mi = new MenuItem("Endless dance");
+        m.add(mi);
+        mi.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent arg0) {
+				_jMocap.streamDance();
+			}
+        	
+        });
+        mi = new MenuItem("Crowd..");
+        m.add(mi);
+        mi.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent arg0) {
+				String s = JOptionPane.showInputDialog(
+						null, "Enter number of dancers", 1000);
+				if (s != null) {
+					try {
+						_jMocap.createCrowd(Integer.parseInt(s.trim()));
+					} catch (NumberFormatException ex) {
+						JOptionPane.showMessageDialog(
+								null,
+								"Not a number of dancers: " + s,
+								"input error",
+								JOptionPane.ERROR_MESSAGE);
+					}
+				}
+			}
+        	
         });
 
         return mb;
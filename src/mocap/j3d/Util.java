@@ -28,11 +28,19 @@ public class Util
      */
     public static void getFullTransform(TransformGroup tg, Transform3D tf)
     {
-        Transform3D tf2 = new Transform3D();
+        getFullTransform(tg, tf, new Transform3D());
+    }
+
+    /**
+     * Same as getFullTransform(TransformGroup, Transform3D), using the given
+     * transform as scratch space instead of allocating one.
+     */
+    public static void getFullTransform(TransformGroup tg, Transform3D tf, Transform3D scratch)
+    {
         tf.setIdentity();
-        tg.getTransform(tf2);
+        tg.getTransform(scratch);
         tg.getLocalToVworld(tf);
-        tf.mul(tf2);
+        tf.mul(scratch);
     }
 
     /**
@@ -84,6 +92,41 @@ public class Util
     	return qz;
     }
     
+    /**
+     * Same as getQuatFromEulerAngles, but writes the result into q instead of
+     * allocating. Performs exactly the float operations that the vecmath
+     * axis-angle conversion and quaternion products do, so the result is
+     * bit-identical.
+     * 
+     * Expects the Euler angles in z,y,x order
+     */
+    public static void setQuatFromEulerAngles(Quat4f q, float rz, float ry, float rx)
+    {
+    	// single-axis quaternions, as Quat4f.set(AxisAngle4f) builds them
+    	float sz = (float) Math.sin(rz / 2.0), cz = (float) Math.cos(rz / 2.0);
+    	float sy = (float) Math.sin(ry / 2.0), cy = (float) Math.cos(ry / 2.0);
+    	float sx = (float) Math.sin(rx / 2.0), cx = (float) Math.cos(rx / 2.0);
+    	
+    	// q = qz
+    	float w = cz, x = 0f * sz, y = 0f * sz, z = sz;
+    	
+    	// q *= qy
+    	float bx = 0f * sy, by = sy, bz = 0f * sy, bw = cy;
+    	float nw = w*bw - x*bx - y*by - z*bz;
+    	float nx = w*bx + bw*x + y*bz - z*by;
+    	float ny = w*by + bw*y - x*bz + z*bx;
+    	z = w*bz + bw*z + x*by - y*bx;
+    	w = nw; x = nx; y = ny;
+    	
+    	// q *= qx
+    	bx = sx; by = 0f * sx; bz = 0f * sx; bw = cx;
+    	nw = w*bw - x*bx - y*by - z*bz;
+    	nx = w*bx + bw*x + y*bz - z*by;
+    	ny = w*by + bw*y - x*bz + z*bx;
+    	q.z = w*bz + bw*z + x*by - y*bx;
+    	q.w = nw; q.x = nx; q.y = ny;
+    }
+    
     /**
      * Go from quaternions to Euler angles
      */
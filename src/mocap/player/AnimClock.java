@@ -1,5 +1,7 @@
 package mocap.player;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import mocap.JMocap;
@@ -8,37 +10,114 @@ import mocap.figure.FigureManager;
 /**
  * Drives the figures managed by the FigureManager by calling the update
  * method.
- * 
+ *
+ * Ticks are scheduled against System.nanoTime at a fixed rate (the thread
+ * parks until the next deadline), and every update gets the time that has
+ * really passed since the previous one, so playback follows the wall clock
+ * however late a tick is. While no figure is playing the thread parks
+ * until the FigureManager wakes it (playAll), or while the clock is
+ * inactive (setActive), e.g. because a FigureUpdateBehavior drives the
+ * figures.
+ *
  * @author Michael Kipp
  */
 public class AnimClock extends Thread {
 
+    public static final float DEFAULT_TICK_RATE = 120;
+
     private FigureManager _figureManager;
-    private int _frames = 0;
-    private float _fps = 100; // used for fps computation
-    private long _t0 = System.currentTimeMillis();
+    private volatile long _period;
+    private volatile boolean _stopped = false;
+    private volatile boolean _active = true;
+    private volatile float _fps; // measured rate of the last tick
 
     public AnimClock(FigureManager fm) {
+        super("AnimClock");
+        setDaemon(true);
         _figureManager = fm;
+        setTickRate(DEFAULT_TICK_RATE);
+        fm.setClock(this);
+    }
+
+    /**
+     * @param rate updates per second
+     */
+    public void setTickRate(float rate) {
+        _period = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+    }
+
+    public float getTickRate() {
+        return TimeUnit.SECONDS.toNanos(1) / (float) _period;
+    }
+
+    /**
+     * @return updates per second, as measured at the last tick
+     */
+    public float getFps() {
+        return _fps;
+    }
+
+    /**
+     * Makes the clock check again whether a figure is playing.
+     */
+    public void wakeUp() {
+        LockSupport.unpark(this);
+    }
+
+    /**
+     * @param active false to stop updating the figures until set to true
+     *   again
+     */
+    public void setActive(boolean active) {
+        _active = active;
+        LockSupport.unpark(this);
+    }
+
+    public boolean isActive() {
+        return _active;
+    }
+
+    /**
+     * Ends the thread after the current tick.
+     */
+    public void shutdown() {
+        _stopped = true;
+        LockSupport.unpark(this);
     }
 
     @Override
     public void run() {
-        while (true) {
-            _frames++;
-
-            // TODO: make this dependent on time *****
-            /*if (_frames >= 200) {
-                long t = System.currentTimeMillis();
-                _fps = _frames / ((t - _t0) / 1000f);
-                _frames = 0;
-                _t0 = t;
-            }*/
-            _figureManager.update(_fps);
-            try {
-                sleep(5);
-            } catch (InterruptedException ex) {
-                Logger.getLogger(JMocap.class.getName()).log(Level.SEVERE, null, ex);
+        long last = System.nanoTime();
+        long next = last;
+        while (!_stopped) {
+            if (!_active || !_figureManager.isPlaying()) {
+                // idle: nothing to do until someone starts playback
+                LockSupport.park(this);
+                last = System.nanoTime();
+                next = last;
+                continue;
+            }
+
+            long now = System.nanoTime();
+            long dt = now - last;
+            last = now;
+            if (dt > 0) {
+                _fps = TimeUnit.SECONDS.toNanos(1) / (float) dt;
+                try {
+                    _figureManager.update(_fps);
+                } catch (RuntimeException ex) {
+                    // e.g. a clip released while playing; the clock
+                    // must keep running
+                    Logger.getLogger(JMocap.class.getName()).log(Level.WARNING, null, ex);
+                }
+            }
+
+            next += _period;
+            if (next < now) // too late, do not try to catch up
+                next = now + _period;
+            long wait;
+            while ((wait = next - System.nanoTime()) > 0 && !_stopped) {
+                LockSupport.parkNanos(this, wait);
             }
         }
     }
@@ -5,222 +5,84 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import javax.vecmath.Point3d;
-import javax.vecmath.Quat4f;
-import javax.vecmath.Vector3f;
-
 import mocap.figure.AnimData;
 import mocap.figure.Bone;
+import mocap.figure.SequenceAnimData;
+import mocap.figure.Skeleton;
 
 public class DanceCreator {
 
 	private ArrayList<AnimData> segments;
-	private Bone skeleton;
+	private TransitionTable transitions;
 	
 	public DanceCreator(ArrayList<AnimData> segments, Bone skel) {
-		this.segments = segments;
-		skeleton = skel;
+		// copied, the transition table must match the list
+		this.segments = new ArrayList<AnimData>(segments);
+		transitions = new TransitionTable(segments, Skeleton.fromBone(skel));
 	}
 	
-	/**
-	 * Creates a new AnimData that has first a, then b, with the end of a 
-	 * blended with the beginning of b.
-	 * @param a
-	 * @param b
-	 * @return
-	 */
-	private AnimData blend(AnimData a, AnimData b) {
-		int overlap = 50;
-		float[] blendWeights = new float[overlap];
-		for (int i=overlap; i>0; i--) {
-			blendWeights[overlap - i] = ((float)i) / overlap; 
-		}
-		
-		//Again, I assume both animations use the same bones
-		int numBones = a.getNumBones();
-		
-		AnimData blendedData = new AnimData(numBones);
-		
-		// *** Start blending translational data *** //
-		Vector3f[] boneTrans1 = a.getBoneTransData();
-		Vector3f[] boneTrans2 = b.getBoneTransData();
-		
-		int numFrames = boneTrans1.length + boneTrans2.length - overlap;
-		
-		blendedData.setNumFrames(numFrames);
-		
-		Vector3f[] blendedTrans = new Vector3f[numFrames];
-		
-		Vector3f end = new Vector3f(boneTrans1[boneTrans1.length-overlap-1]);
-		Vector3f start = boneTrans2[0];
-		
-		end.sub(start);
-		Vector3f shift = new Vector3f(end);
-		
-		for (int i=0; i<boneTrans1.length; i++) {
-			blendedTrans[i] = boneTrans1[i];
-		}
-		
-		int k = 0;
-		for (int i=boneTrans1.length-overlap; i<boneTrans1.length; i++) {
-			Vector3f vec1 = boneTrans1[i];
-			Vector3f vec2 = new Vector3f(boneTrans2[k]);
-			
-			vec2.add(shift);
-			
-			Vector3f blend = new Vector3f();
-			blend.x = vec1.x * blendWeights[k] + vec2.x * 
-				blendWeights[overlap - k - 1];
-			blend.y = vec1.y * blendWeights[k] + vec2.y * 
-				blendWeights[overlap - k - 1];
-			blend.z = vec1.z * blendWeights[k] + vec2.z * 
-				blendWeights[overlap - k - 1];
-			
-			blendedTrans[i] = blend;
-			k++;
-		}
-		
-		for (int i=k; i<boneTrans2.length; i++) {
-			Vector3f curr = new Vector3f(boneTrans2[i]);
-			curr.add(shift);
-			blendedTrans[i + boneTrans1.length - overlap] = curr;
-		}
-		
-		blendedData.putBoneTransData(blendedTrans);
-		// *** End blending translational data *** //
-		
-		
-		/*Quat4f qShift = null;
-		Quat4f first = new Quat4f(a.getBoneRotData(0)[a.getNumFrames()-overlap-1]);
-		Quat4f sec = new Quat4f(b.getBoneRotData(0)[0]);
-				
-		qShift = new Quat4f(sec);
-		qShift.inverse();
-		qShift.mul(first);*/
+	/** number of frames cross-faded between two segments */
+	static final int OVERLAP = 50;
+	
+	public AnimData getSequence(int numSegments) {
+		// the segments are referenced, not copied, so this stays linear
+		int last = chooseFirst();
+		SequenceAnimData sequence = new SequenceAnimData(segments.get(last));
 		
-		// *** Start blending rotational data *** //
-		for (int i=0; i<numBones; i++) {
-			Quat4f[] boneRot1 = a.getBoneRotData(i);
-			Quat4f[] boneRot2 = b.getBoneRotData(i);
-			
-			Quat4f[] boneBlend = new Quat4f[numFrames];
-			
-			for (int j=0; j<boneRot1.length-overlap; j++) {
-				boneBlend[j] = boneRot1[j];
-			}
-			
-			k=0;
-			for (int j=boneRot1.length-overlap; j<boneRot1.length; j++) {
-				Quat4f q1 = new Quat4f(boneRot1[j]);
-				Quat4f q2 = new Quat4f(boneRot2[k]);
-				//if (i==0) q2.mul(qShift);
-				q1.interpolate(q2, 1-blendWeights[k]);
-				
-				boneBlend[j] = q1;
-				k++;
-			}
-			
-			for (int j=k; j<boneRot2.length; j++) {
-				Quat4f q = new Quat4f(boneRot2[j]);
-				//if (i==0) q.mul(qShift);
-				boneBlend[boneRot1.length-overlap + j] = q;
-			}
+		for(int i=1; i<numSegments; i++) {
+			last = chooseNext(last);
+			sequence.append(segments.get(last), OVERLAP);
 			
-			blendedData.putBoneRotData(i, boneBlend);
+			//TODO: Add Perlin noise
 		}
-		// *** End blending rotational data *** //
-		
 		
-		return blendedData;
+		return sequence;
 	}
 	
-	private float confLevel(AnimData a, AnimData b) {
-		float conf = 0f;
-		
-		List<Bone> bones = new ArrayList<Bone>();
-		skeleton.collectBones(bones); 
-		Point3d offset = new Point3d(); 
-		
-		ArrayList<Point3d> pos1s = new ArrayList<Point3d>();
-		
-		for (int i = 0; i < bones.size(); i++)
-		{
-			Bone bone = bones.get(i);
-			int bi = bone.getIndex();
-			if (bi == 0)
-				bone.setPose(
-						a.getBoneTransData()[a.getNumFrames() - 1], 
-						a.getBoneRotData(bi)[a.getNumFrames() - 1], offset);
-			else
-				bone.setPose(a.getBoneRotData(bi)[a.getNumFrames() - 1], 
-						offset);
-			
-			Point3d pos1 = new Point3d();
-			bone.getWorldPosition(pos1);
-			pos1s.add(pos1);
-		}
-		
-		ArrayList<Point3d> pos2s = new ArrayList<Point3d>();
-			
-		for (int i = 0; i < bones.size(); i++)
-		{
-			Bone bone = bones.get(i);
-			int bi = bone.getIndex();
-			if (bi == 0)
-				//Use the last frame as the position for the root, because
-				//we're going to shift it over before blending anyway
-				bone.setPose(a.getBoneTransData()[a.getNumFrames()-1], 
-						b.getBoneRotData(bi)[0], offset);
-			else
-				bone.setPose(b.getBoneRotData(bi)[0], offset);
-			
-			Point3d pos2 = new Point3d();
-			bone.getWorldPosition(pos2);
-			pos2s.add(pos2);
-		}
-		
-		for(int i=0; i<pos1s.size(); i++) {
-			double dist = pos2s.get(i).distance(pos1s.get(i));
-			
-			conf += dist;
-		}
-		
-		return 100/conf;
+	public List<AnimData> getSegments() {
+		return segments;
 	}
 	
-	public AnimData getSequence(int numSegments) {
-		AnimData sequence = null;
+	AnimData getSegment(int i) {
+		return segments.get(i);
+	}
+	
+	/**
+	 * @return index of a random segment to start a dance with
+	 */
+	int chooseFirst() {
+		return (int)(Math.random() * segments.size());
+	}
+	
+	/**
+	 * Picks a random segment among those that continue well from the end
+	 * of segment last. (When last is exactly OVERLAP frames long, the end
+	 * of the sequence is slightly blended with what came before; its own
+	 * end pose is used anyway.)
+	 * 
+	 * @return index of the segment
+	 */
+	int chooseNext(int last) {
+		float thresh = 4f;
+		Map<Float, Integer> highConf = getSegsOverThresh(last, thresh);
 		
-		int rand = (int)(Math.random() * segments.size());
+		while (highConf.size() == 0) {
+			thresh -= .5f;
+			highConf = getSegsOverThresh(last, thresh);
+		}
 		
-		sequence = segments.get(rand);
+		ArrayList<Integer> chosen = new ArrayList<Integer>();
 		
-		for(int i=1; i<numSegments; i++) {
-			float thresh = 4f;
-			Map<Float, AnimData> highConf = getSegsOverThresh(sequence, thresh);
-			
-			while (highConf.size() == 0) {
-				thresh -= .5f;
-				highConf = getSegsOverThresh(sequence, thresh);
-			}
-			
-			ArrayList<AnimData> chosen = new ArrayList<AnimData>();
-			
-			for (Float f : highConf.keySet()) {
-				chosen.add(highConf.get(f));
-			}
-			
-			rand = (int)(Math.random() * (chosen.size()-1));
-			sequence = blend(sequence, chosen.get(rand));
-			
-			//TODO: Add Perlin noise
+		for (Float f : highConf.keySet()) {
+			chosen.add(highConf.get(f));
 		}
 		
-		return sequence;
+		int rand = (int)(Math.random() * (chosen.size()-1));
+		return chosen.get(rand);
 	}
 
-	private Map<Float, AnimData> getTopThree(AnimData sequence) {
-		Map<Float, AnimData> allConf = getSegsOverThresh(sequence, 0);
+	private Map<Float, Integer> getTopThree(int last) {
+		Map<Float, Integer> allConf = getSegsOverThresh(last, 0);
 		
 		float max = 0;
 		float max2 = 0;
@@ -246,22 +108,25 @@ public class DanceCreator {
 			}
 		}
 		
-		Map<Float, AnimData> top3 = new HashMap<Float, AnimData>();
+		Map<Float, Integer> top3 = new HashMap<Float, Integer>();
 		top3.put(max, allConf.get(max));
 		top3.put(max2, allConf.get(max2));
 		top3.put(max3, allConf.get(max3));
 		return top3;
 	}
 
-	private Map<Float, AnimData> getSegsOverThresh(
-			AnimData sequence, float thresh) {
-		Map<Float, AnimData> highConf = new HashMap<Float, AnimData>();
+	/**
+	 * @return the segments that may follow segment last with at least the
+	 *   given confidence (see TransitionTable), by confidence
+	 */
+	private Map<Float, Integer> getSegsOverThresh(int last, float thresh) {
+		Map<Float, Integer> highConf = new HashMap<Float, Integer>();
 		
 		for(int j=0; j<segments.size(); j++) {
-			float conf = confLevel(sequence, segments.get(j));
+			float conf = transitions.getConfidence(last, j);
 			
 			if (conf >= thresh) {
-				highConf.put(conf, segments.get(j));
+				highConf.put(conf, j);
 			}
 		}
 		
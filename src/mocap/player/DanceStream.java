@@ -0,0 +1,353 @@
+package mocap.player;
+
+import java.util.ArrayDeque;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.vecmath.Quat4f;
+import javax.vecmath.Vector3f;
+
+import mocap.figure.AnimData;
+import mocap.figure.SequenceAnimData;
+
+/**
+ * An endless dance: a background thread keeps choosing and blending
+ * segments (the way DanceCreator.getSequence does) a little ahead of the
+ * frame being played, and frames that have been played are dropped. The
+ * memory used therefore stays bounded by the lookahead, no matter how long
+ * the dance runs.
+ *
+ * The stream reports Integer.MAX_VALUE frames and is meant to be played
+ * forwards. Frames that have already been dropped are replaced by the
+ * oldest frame still kept. Reading never waits for the producer (it may
+ * be called on the render thread): a frame that has not been produced yet
+ * shows the newest pose, and the dance continues from the requested frame
+ * on. A seek far ahead thus skips the frames in between instead of
+ * producing all of them.
+ *
+ * If producing the next segment fails, the error is logged and another
+ * segment is tried; after MAX_FAILURES failures in a row the producer
+ * gives up (see getFailure) and the dance holds its last pose.
+ *
+ * Call close() when the stream is no longer played, to stop the thread,
+ * and join() before releasing what the DanceCreator reads from.
+ */
+public class DanceStream extends AnimData
+{
+	public static final int DEFAULT_LOOKAHEAD = 1000;
+	/** played frames kept, e.g. for stepping back */
+	private static final int HISTORY = 200;
+	/** failures in a row after which the producer stops */
+	public static final int MAX_FAILURES = 10;
+
+	private static class Block
+	{
+		final int start;
+		final AnimData data;
+
+		Block(int start, AnimData data)
+		{
+			this.start = start;
+			this.data = data;
+		}
+	}
+
+	private final DanceCreator creator;
+	private final int lookahead;
+	private final ArrayDeque<Block> blocks = new ArrayDeque<Block>();
+	private Block last; // block of the last frame read
+	private int end = 0; // frames produced so far
+	private int readFrame = 0; // furthest frame read
+	private volatile boolean closed = false;
+	private volatile RuntimeException failure; // why the producer stopped
+	private final boolean hasTranslations;
+
+	// producer state: the last OVERLAP + 1 frames of the dance, the newest
+	// OVERLAP of which are not published yet as they are blended with the
+	// next segment
+	private AnimData tail;
+	private int lastSegment;
+	private int failures = 0; // in a row
+	private final Thread producer;
+
+	public DanceStream(DanceCreator creator)
+	{
+		this(creator, DEFAULT_LOOKAHEAD);
+	}
+
+	/**
+	 * @param lookahead number of frames to keep ready ahead of the frame
+	 *   being played
+	 */
+	public DanceStream(DanceCreator creator, int lookahead)
+	{
+		this(creator, creator.chooseFirst(), lookahead);
+	}
+
+	private DanceStream(DanceCreator creator, int firstSegment, int lookahead)
+	{
+		super(creator.getSegment(firstSegment).getNumBones());
+		AnimData first = creator.getSegment(firstSegment);
+		lastSegment = firstSegment;
+		this.creator = creator;
+		this.lookahead = lookahead;
+		hasTranslations = first.hasTranslations();
+
+		setFps(first.getFps());
+		int len = first.getNumFrames();
+		publish(first.subCopy(0, len - DanceCreator.OVERLAP));
+		tail = copy(first, len - DanceCreator.OVERLAP - 1, len);
+
+		producer = new Thread(new Runnable() {
+			public void run() {
+				produce();
+			}
+		}, "DanceStream");
+		producer.setDaemon(true);
+		producer.start();
+	}
+
+	private void produce()
+	{
+		while (!closed)
+		{
+			synchronized (this) {
+				while (!closed && end - readFrame >= lookahead) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+			if (closed)
+				return;
+
+			try {
+				produceSegment();
+				failures = 0;
+			} catch (RuntimeException ex) {
+				if (closed)
+					return;
+				Logger.getLogger(DanceStream.class.getName()).log(Level.WARNING,
+						"could not continue the dance", ex);
+				if (++failures >= MAX_FAILURES) {
+					failure = ex;
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Chooses the next segment and publishes it, blended with the tail. The
+	 * tail is only replaced at the end, so a failed segment can be tried
+	 * again.
+	 */
+	private void produceSegment()
+	{
+		int next = creator.chooseNext(lastSegment);
+		SequenceAnimData seq = new SequenceAnimData(tail);
+		seq.append(creator.getSegment(next), DanceCreator.OVERLAP);
+		int len = seq.getNumFrames();
+		// copied, so that the blocks do not reference each other
+		AnimData newTail = copy(seq, len - DanceCreator.OVERLAP - 1, len);
+		// frame 0 of the tail was published before
+		if (len - DanceCreator.OVERLAP > 1)
+			publish(seq.subCopy(1, len - DanceCreator.OVERLAP));
+		tail = newTail;
+		lastSegment = next;
+	}
+
+	private synchronized void publish(AnimData data)
+	{
+		blocks.addLast(new Block(end, data));
+		end += data.getNumFrames();
+		notifyAll();
+	}
+
+	private static AnimData copy(AnimData data, int start, int end)
+	{
+		int n = end - start;
+		AnimData ret = new AnimData(data.getNumBones());
+		ret.setNumFrames(n);
+		ret.setFps(data.getFps());
+		Quat4f q = new Quat4f();
+		for (int i = 0; i < data.getNumBones(); i++)
+		{
+			float[] rot = new float[4 * n];
+			for (int f = 0; f < n; f++)
+			{
+				data.getBoneRot(i, start + f, q);
+				rot[4*f] = q.x;
+				rot[4*f + 1] = q.y;
+				rot[4*f + 2] = q.z;
+				rot[4*f + 3] = q.w;
+			}
+			ret.putBoneRotArray(i, rot);
+		}
+		if (data.hasTranslations())
+		{
+			float[] trans = new float[3 * n];
+			Vector3f v = new Vector3f();
+			for (int f = 0; f < n; f++)
+			{
+				data.getBoneTrans(start + f, v);
+				trans[3*f] = v.x;
+				trans[3*f + 1] = v.y;
+				trans[3*f + 2] = v.z;
+			}
+			ret.putBoneTransArray(trans);
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the block containing the frame, or the closest one (never
+	 *   waits for the producer)
+	 */
+	private synchronized Block block(int frame)
+	{
+		if (frame > readFrame)
+			advance(frame);
+		Block b = last;
+		if (b != null && b.start <= frame && frame < b.start + b.data.getNumFrames())
+			return b;
+
+		if (frame > end) {
+			// not produced yet: the next block starts at this frame, the
+			// ones before it are skipped; the newest pose is shown meanwhile
+			end = frame;
+		}
+		b = blocks.getFirst();
+		for (Block block : blocks) {
+			if (block.start > frame)
+				break;
+			b = block;
+		}
+		last = b;
+		return b;
+	}
+
+	/**
+	 * Drops the blocks played long enough ago and wakes the producer if the
+	 * lookahead is getting short.
+	 */
+	private void advance(int frame)
+	{
+		readFrame = frame;
+		while (blocks.size() > 1) {
+			Block first = blocks.getFirst();
+			if (first.start + first.data.getNumFrames() > readFrame - HISTORY)
+				break;
+			blocks.removeFirst();
+		}
+		if (end - readFrame < lookahead)
+			notifyAll();
+	}
+
+	private static int clamp(Block b, int frame)
+	{
+		int f = frame - b.start;
+		return f < 0 ? 0 : Math.min(f, b.data.getNumFrames() - 1);
+	}
+
+	@Override
+	public Quat4f getBoneRot(int boneIndex, int frame, Quat4f q)
+	{
+		Block b = block(frame);
+		return b.data.getBoneRot(boneIndex, clamp(b, frame), q);
+	}
+
+	@Override
+	public Vector3f getBoneTrans(int frame, Vector3f v)
+	{
+		Block b = block(frame);
+		return b.data.getBoneTrans(clamp(b, frame), v);
+	}
+
+	@Override
+	public boolean hasTranslations() {
+		return hasTranslations;
+	}
+
+	@Override
+	public int getNumFrames() {
+		return Integer.MAX_VALUE;
+	}
+
+	@Override
+	public boolean isEndless() {
+		return true;
+	}
+
+	/**
+	 * @return number of frames currently held
+	 */
+	public synchronized int getNumBufferedFrames() {
+		int n = 0;
+		for (Block b : blocks)
+			n += b.data.getNumFrames();
+		return n;
+	}
+
+	/**
+	 * Stops the producer thread. Frames already produced can still be read.
+	 */
+	public synchronized void close()
+	{
+		closed = true;
+		producer.interrupt();
+		notifyAll();
+	}
+
+	/**
+	 * Waits for the producer thread to stop, see close.
+	 *
+	 * @param millis longest time to wait
+	 * @return true if it has stopped
+	 */
+	public boolean join(long millis) throws InterruptedException
+	{
+		producer.join(millis);
+		return !producer.isAlive();
+	}
+
+	/**
+	 * @return the error that made the producer give up, null while it runs
+	 *   (or after close)
+	 */
+	public RuntimeException getFailure() {
+		return failure;
+	}
+
+	@Override
+	public float[] getBoneRotArray(int boneIndex)
+	{
+		throw new UnsupportedOperationException("endless stream");
+	}
+
+	@Override
+	public float[] getBoneTransArray()
+	{
+		throw new UnsupportedOperationException("endless stream");
+	}
+
+	@Override
+	public void putBoneRotArray(int index, float[] xyzw)
+	{
+		throw new UnsupportedOperationException("read-only stream");
+	}
+
+	@Override
+	public void putBoneTransArray(float[] xyz)
+	{
+		throw new UnsupportedOperationException("read-only stream");
+	}
+
+	@Override
+	public String toString()
+	{
+		return "<DanceStream buffered:" + getNumBufferedFrames() + ">";
+	}
+}
@@ -0,0 +1,85 @@
+package mocap.player;
+
+import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.media.j3d.Behavior;
+import javax.media.j3d.BoundingSphere;
+import javax.media.j3d.WakeupCondition;
+import javax.media.j3d.WakeupOnElapsedFrames;
+import javax.media.j3d.WakeupOnElapsedTime;
+import javax.vecmath.Point3d;
+import mocap.JMocap;
+import mocap.figure.FigureManager;
+
+/**
+ * Drives the figures from the Java3D behavior scheduler instead of the
+ * AnimClock thread: the FigureManager is updated once per rendered frame,
+ * before the frame is drawn, with the time that has passed since the
+ * previous frame. Poses are thus never changed while a frame is rendered
+ * and no work is done for frames that are never shown.
+ *
+ * While no figure is playing the behavior only looks every IDLE_CHECK_MS,
+ * so that the renderer is not kept busy.
+ *
+ * Disabled when created, see setEnable.
+ *
+ * @author Michael Kipp
+ */
+public class FigureUpdateBehavior extends Behavior {
+
+    public static final long IDLE_CHECK_MS = 100;
+
+    private final FigureManager _figureManager;
+    private final WakeupCondition _nextFrame = new WakeupOnElapsedFrames(0);
+    private final WakeupCondition _idle = new WakeupOnElapsedTime(IDLE_CHECK_MS);
+    private volatile long _last = -1; // also reset by setEnable, on the GUI thread
+    private volatile float _fps; // measured rate of the last frame
+
+    public FigureUpdateBehavior(FigureManager fm) {
+        _figureManager = fm;
+        setSchedulingBounds(new BoundingSphere(new Point3d(), Double.MAX_VALUE));
+        setEnable(false);
+    }
+
+    /**
+     * @return frames per second, as measured at the last update
+     */
+    public float getFps() {
+        return _fps;
+    }
+
+    @Override
+    public void setEnable(boolean state) {
+        _last = -1; // the time while disabled does not count
+        super.setEnable(state);
+    }
+
+    @Override
+    public void initialize() {
+        wakeupOn(_idle);
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes") // the signature Java3D declares
+    public void processStimulus(Enumeration criteria) {
+        if (!_figureManager.isPlaying()) {
+            _last = -1;
+            wakeupOn(_idle);
+            return;
+        }
+        long now = System.nanoTime();
+        if (_last >= 0 && now > _last) {
+            _fps = TimeUnit.SECONDS.toNanos(1) / (float) (now - _last);
+            try {
+                _figureManager.update(_fps);
+            } catch (RuntimeException ex) {
+                // a failing update must not stop the behavior
+                Logger.getLogger(JMocap.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+        _last = now;
+        wakeupOn(_nextFrame);
+    }
+}
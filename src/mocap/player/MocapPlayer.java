@@ -3,6 +3,8 @@ package mocap.player;
 import java.util.ArrayList;
 import java.util.List;
 import javax.vecmath.Point3d;
+import javax.vecmath.Quat4f;
+import javax.vecmath.Vector3f;
 import mocap.figure.AnimData;
 import mocap.figure.Bone;
 
@@ -11,13 +13,22 @@ import mocap.figure.Bone;
  * Needs the skeleton and the animation data (usually mocap data).
  * The method update(fps) must be called periodically to make animation run.
  * 
+ * An update can also be done in three steps, as FigureManager does to pose
+ * many figures in parallel: advance moves the time on, samplePose reads the
+ * new frame from the animation data into a buffer (touches nothing but
+ * this player, may run on any thread) and applyPose sets the bones.
+ * 
+ * Posing is synchronized on the player, as the GUI jumps to frames
+ * (gotoFrame) while the clock or the renderer updates; the listeners are
+ * told outside the lock.
+ * 
  * @author Michael Kipp
  */
 public class MocapPlayer extends AnimPlayer
 {
 
     public static final float DEFAULT_FPS = 90;
-    private boolean _isPlaying = false;
+    private volatile boolean _isPlaying = false; // read by the AnimClock
     private Bone _root;
     private Bone[] _bones; // skeleton
     private double _time = 0;
@@ -26,6 +37,12 @@ public class MocapPlayer extends AnimPlayer
     private AnimData _animData;
     private Point3d _offset;
     private boolean _pinAtRoot = false;
+    // reused for every pose, setPose copies them; guarded by this
+    private final Quat4f _rot = new Quat4f();
+    private final Vector3f _trans = new Vector3f();
+    // sampled pose: x,y,z,w per bone, then the root translation
+    private float[] _pose;
+    private int _poseFrame = -1;
 
     public MocapPlayer(Bone skeleton, AnimData dat, Point3d offset)
     {
@@ -42,6 +59,7 @@ public class MocapPlayer extends AnimPlayer
         skeleton.collectBones(ls);
         _bones = new Bone[ls.size()];
         _bones = (Bone[]) ls.toArray(_bones);
+        _pose = new float[4 * _bones.length + 3];
     }
 
     private int mapTimeToFrame(double time)
@@ -73,28 +91,101 @@ public class MocapPlayer extends AnimPlayer
     public void gotoFrame(int frame)
     {
         if (_animData != null) {
-            for (int i = 0; i < _bones.length; i++) {
-                Bone bone = _bones[i];
-                if (bone != _root || !_pinAtRoot) {
-                    //bone.setPose(frame, _animData.getBlendedBoneData( bone.getIndex()), _offset);
-                	//bone.setPose(_animData.getBoneXformData(0, bone.getIndex(), frame), _offset);
-                	int bi = bone.getIndex();
-                	if (bi == 0)
-                		bone.setPose(_animData.getBoneTransData()[frame],
-                					 _animData.getBoneRotData(bi)[frame],
-                				     _offset);
-                	else
-                		bone.setPose(_animData.getBoneRotData(bi)[frame], _offset);
-                }
+            int f;
+            synchronized (this) {
+                samplePose(frame);
+                f = setBones();
             }
-            _frame = frame;
-            for (PlayerFrameListener li : _listeners) {
-                li.frameUpdate(frame);
+            fireFrameUpdate(f);
+        }
+    }
+
+    public synchronized void setOffset(Point3d offset)
+    {
+        _offset = offset;
+    }
+
+    /**
+     * Reads the pose of the frame from the animation data, to be set by
+     * applyPose.
+     */
+    private void samplePose(int frame)
+    {
+        float[] pose = _pose;
+        for (int i = 0; i < _bones.length; i++) {
+            //bone.setPose(frame, _animData.getBlendedBoneData( bone.getIndex()), _offset);
+            //bone.setPose(_animData.getBoneXformData(0, bone.getIndex(), frame), _offset);
+            int bi = _bones[i].getIndex();
+            _animData.getBoneRot(bi, frame, _rot);
+            pose[4*i] = _rot.x;
+            pose[4*i + 1] = _rot.y;
+            pose[4*i + 2] = _rot.z;
+            pose[4*i + 3] = _rot.w;
+            if (bi == 0) {
+                _animData.getBoneTrans(frame, _trans);
+                int t = 4 * _bones.length;
+                pose[t] = _trans.x;
+                pose[t + 1] = _trans.y;
+                pose[t + 2] = _trans.z;
             }
         }
+        _poseFrame = frame;
+    }
+
+    /**
+     * Reads the frame chosen by the last advance from the animation data.
+     * Only uses this player, so that players can be sampled in parallel.
+     */
+    public synchronized void samplePose()
+    {
+        samplePose(_poseFrame);
+    }
+
+    /**
+     * Sets the bones to the sampled pose and tells the listeners.
+     */
+    public void applyPose()
+    {
+        int frame;
+        synchronized (this) {
+            frame = setBones();
+        }
+        fireFrameUpdate(frame);
+    }
+
+    /**
+     * Sets the bones to the sampled pose, the caller holds the lock.
+     * 
+     * @return the frame now shown
+     */
+    private int setBones()
+    {
+        float[] pose = _pose;
+        for (int i = 0; i < _bones.length; i++) {
+            Bone bone = _bones[i];
+            if (bone != _root || !_pinAtRoot) {
+                _rot.set(pose[4*i], pose[4*i + 1], pose[4*i + 2], pose[4*i + 3]);
+                if (bone.getIndex() == 0) {
+                    int t = 4 * _bones.length;
+                    _trans.set(pose[t], pose[t + 1], pose[t + 2]);
+                    bone.setPose(_trans, _rot, _offset);
+                } else {
+                    bone.setPose(_rot, _offset);
+                }
+            }
+        }
+        _frame = _poseFrame;
+        return _frame;
+    }
+
+    private void fireFrameUpdate(int frame)
+    {
+        for (int i = 0; i < _listeners.size(); i++) {
+            _listeners.get(i).frameUpdate(frame);
+        }
     }
     
-    public void setCurFrame(int frame)
+    public synchronized void setCurFrame(int frame)
     {
     	_time = frame / 1.0 / _fps;
     }
@@ -104,7 +195,12 @@ public class MocapPlayer extends AnimPlayer
         return _animData.getNumFrames();
     }
 
-    public int getCurrentFrame()
+    public AnimData getAnimData()
+    {
+        return _animData;
+    }
+
+    public synchronized int getCurrentFrame()
     {
         return _frame;
     }
@@ -113,7 +209,7 @@ public class MocapPlayer extends AnimPlayer
      * Intended playback speed of the motion capture fragment.
      * @param fps
      */
-    public void setPlaybackFps(float fps)
+    public synchronized void setPlaybackFps(float fps)
     {
         _fps = fps;
         _time = _frame / _fps;
@@ -140,30 +236,40 @@ public class MocapPlayer extends AnimPlayer
 
     public void reset()
     {
-        _isPlaying = false;
-        _time = 0;
-        _frame = -1;
+        synchronized (this) {
+            _isPlaying = false;
+            _time = 0;
+            _frame = -1;
+        }
         gotoFrame(0);
     }
 
     public void frameForward()
     {
-        _frame++;
-        if (_frame >= _animData.getNumFrames()) {
-            _frame = 0;
+        int f;
+        synchronized (this) {
+            _frame++;
+            if (_frame >= _animData.getNumFrames()) {
+                _frame = 0;
+            }
+            _time = _frame / _fps;
+            f = _frame;
         }
-        _time = _frame / _fps;
-        gotoFrame(_frame);
+        gotoFrame(f);
     }
 
     public void frameBackward()
     {
-        _frame--;
-        if (_frame < 0) {
-            _frame = _animData.getNumFrames() - 1;
+        int f;
+        synchronized (this) {
+            _frame--;
+            if (_frame < 0) {
+                _frame = _animData.getNumFrames() - 1;
+            }
+            _time = _frame / _fps;
+            f = _frame;
         }
-        _time = _frame / _fps;
-        gotoFrame(_frame);
+        gotoFrame(f);
     }
 
     /**
@@ -176,7 +282,21 @@ public class MocapPlayer extends AnimPlayer
     @Override
     public void update(float fps)
     {
-        
+        if (advance(fps)) {
+            samplePose();
+            applyPose();
+        }
+    }
+
+    /**
+     * Moves the playback time on, like update, without posing the figure.
+     * 
+     * @param fps The fps speed of the system
+     * @return true if a new frame is due, to be set with samplePose and
+     *   applyPose
+     */
+    public synchronized boolean advance(float fps)
+    {
         if (_isPlaying) {
             _time += 1 / fps;  // time in seconds since setIsPlaying
             int frame = (int) Math.round(_time * _fps); // frame in animation
@@ -184,9 +304,10 @@ public class MocapPlayer extends AnimPlayer
                 _time = 0;
                 _frame = -1;
             } else if (frame > _frame) {
-                gotoFrame(frame);
-                _frame = frame;
+                _poseFrame = frame;
+                return true;
             }
         }
+        return false;
     }
 }
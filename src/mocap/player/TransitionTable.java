@@ -0,0 +1,157 @@
+package mocap.player;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import mocap.figure.AnimData;
+import mocap.figure.ForwardKinematics;
+import mocap.figure.Skeleton;
+
+/**
+ * How well each segment of a library continues each other one. Every
+ * segment gets two feature vectors, the joint positions of its first and
+ * of its last frame relative to the root (so they do not depend on where
+ * the segment was captured, see ForwardKinematics), and the cost of the
+ * transition i to j is the sum of the distances between the joints of the
+ * end pose of i and the start pose of j. This is the measure DanceCreator
+ * used to compute by posing the skeleton for every candidate.
+ *
+ * The features and the cost matrix are computed in parallel, once per
+ * library; the owner of the segments (DanceCreator) keeps the table, which
+ * no longer matches once the segments are changed.
+ */
+public class TransitionTable
+{
+	/** below this many segments per task the rows are not split further */
+	private static final int MIN_ROWS = 16;
+
+	private static ForkJoinPool pool;
+
+	private final Skeleton skeleton;
+	private final int n;
+	// joint positions relative to the root, x,y,z per joint
+	private final float[][] startPoses, endPoses;
+	// costs[i * n + j]: from the end of i to the start of j
+	private final float[] costs;
+
+	public TransitionTable(List<AnimData> segments, Skeleton skeleton)
+	{
+		this.skeleton = skeleton;
+		n = segments.size();
+		startPoses = new float[n][];
+		endPoses = new float[n][];
+		costs = new float[n * n];
+		ForkJoinPool fjPool = getPool();
+		fjPool.invoke(new Features(segments, 0, n));
+		fjPool.invoke(new Costs(0, n));
+	}
+
+	private static synchronized ForkJoinPool getPool()
+	{
+		if (pool == null)
+			pool = new ForkJoinPool();
+		return pool;
+	}
+
+	public int getNumSegments() {
+		return n;
+	}
+
+	/**
+	 * @return sum of the joint distances between the last frame of segment
+	 *   from and the first frame of segment to
+	 */
+	public float getCost(int from, int to) {
+		return costs[from * n + to];
+	}
+
+	/**
+	 * @return 100 / cost, the confidence DanceCreator uses
+	 */
+	public float getConfidence(int from, int to) {
+		return 100 / costs[from * n + to];
+	}
+
+	/**
+	 * @return joint positions of the frame relative to the root joint
+	 */
+	private static float[] pose(ForwardKinematics fk, AnimData data, int frame)
+	{
+		float[] pos = new float[3 * fk.getSkeleton().getNumJoints()];
+		fk.pose(data, frame, pos, null);
+		for (int k = pos.length - 3; k >= 0; k -= 3) {
+			pos[k] -= pos[0];
+			pos[k + 1] -= pos[1];
+			pos[k + 2] -= pos[2];
+		}
+		return pos;
+	}
+
+	private class Features extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		private final List<AnimData> segments;
+		private final int from, to;
+
+		Features(List<AnimData> segments, int from, int to)
+		{
+			this.segments = segments;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (to - from <= MIN_ROWS) {
+				ForwardKinematics fk = new ForwardKinematics(skeleton);
+				for (int i = from; i < to; i++) {
+					AnimData data = segments.get(i);
+					startPoses[i] = pose(fk, data, 0);
+					endPoses[i] = pose(fk, data, data.getNumFrames() - 1);
+				}
+			} else {
+				int mid = (from + to) / 2;
+				invokeAll(new Features(segments, from, mid),
+						new Features(segments, mid, to));
+			}
+		}
+	}
+
+	private class Costs extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		private final int from, to;
+
+		Costs(int from, int to)
+		{
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (to - from <= MIN_ROWS) {
+				for (int i = from; i < to; i++) {
+					float[] end = endPoses[i];
+					for (int j = 0; j < n; j++) {
+						float[] start = startPoses[j];
+						double sum = 0;
+						for (int k = 0; k < end.length; k += 3) {
+							double dx = start[k] - end[k];
+							double dy = start[k + 1] - end[k + 1];
+							double dz = start[k + 2] - end[k + 2];
+							sum += Math.sqrt(dx*dx + dy*dy + dz*dz);
+						}
+						costs[i * n + j] = (float) sum;
+					}
+				}
+			} else {
+				int mid = (from + to) / 2;
+				invokeAll(new Costs(from, mid), new Costs(mid, to));
+			}
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package mocap.reader;
+
+import java.util.List;
+
+import javax.vecmath.Quat4f;
+
+import mocap.figure.AnimData;
+import mocap.figure.Bone;
+import mocap.j3d.Util;
+
+/**
+ * Converts decoded motion lines into per-bone quaternions and the root
+ * translation, stored the way AnimData keeps them (x,y,z,w resp. x,y,z per
+ * frame). Every frame only touches its own slots, so this works with the
+ * parallel decoder as well.
+ */
+class AnimDataSink implements MotionSink {
+	final float[][] rotations;
+	final float[] translations;
+	final int frames;
+	boolean hasTranslation = false;
+	// if set, the raw channel values of every frame are copied here
+	double[][] rawValues;
+	private final int[] channel, dof;
+	// scratch for frame; one per thread, as the parallel decoder calls
+	// frame from several threads at once
+	private static final ThreadLocal<Quat4f> scratch = new ThreadLocal<Quat4f>() {
+		@Override
+		protected Quat4f initialValue() {
+			return new Quat4f();
+		}
+	};
+	
+	/**
+	 * @param bones all bones in the order of the animation data, their
+	 *   index still being the offset of their first channel
+	 */
+	AnimDataSink(List<Bone> bones, int frames)
+	{
+		this.frames = frames;
+		rotations = new float[bones.size()][4 * frames];
+		translations = new float[3 * frames];
+		channel = new int[bones.size()];
+		dof = new int[bones.size()];
+		for (int i = 0; i < bones.size(); i++) {
+			channel[i] = bones.get(i).getIndex();
+			dof[i] = bones.get(i).getDOF();
+			hasTranslation |= dof[i] == 6;
+		}
+	}
+	
+	/**
+	 * Creates a sink with the same channel layout as the given one.
+	 */
+	AnimDataSink(AnimDataSink layout, int frames)
+	{
+		channel = layout.channel;
+		dof = layout.dof;
+		hasTranslation = layout.hasTranslation;
+		this.frames = frames;
+		rotations = new float[channel.length][4 * frames];
+		translations = new float[3 * frames];
+	}
+	
+	@Override
+	public void frame(int f, double[] values)
+	{
+		if (rawValues != null)
+			rawValues[f] = values.clone();
+		
+		Quat4f q = scratch.get();
+		for (int i = 0; i < channel.length; i++)
+		{
+			int index = channel[i];
+			if (dof[i] == 6)
+			{
+				// translations come first, then the rotations
+				translations[3*f] = (float)values[index];
+				translations[3*f + 1] = (float)values[index + 1];
+				translations[3*f + 2] = (float)values[index + 2];
+				index += 3;
+			}
+			Util.setQuatFromEulerAngles(q,
+					(float)Math.toRadians((float)values[index]),
+					(float)Math.toRadians((float)values[index + 1]),
+					(float)Math.toRadians((float)values[index + 2]));
+			float[] rot = rotations[i];
+			rot[4*f] = q.x;
+			rot[4*f + 1] = q.y;
+			rot[4*f + 2] = q.z;
+			rot[4*f + 3] = q.w;
+		}
+	}
+	
+	AnimData toAnimData(float fps)
+	{
+		AnimData ad = new AnimData(rotations.length);
+		ad.setFps(fps);
+		ad.setNumFrames(frames);
+		for (int i = 0; i < rotations.length; i++)
+			ad.putBoneRotArray(i, rotations[i]);
+		ad.putBoneTransArray(hasTranslation ? translations : null);
+		return ad;
+	}
+}
@@ -0,0 +1,66 @@
+package mocap.reader;
+
+import java.io.File;
+
+import mocap.figure.AnimData;
+import mocap.figure.Bone;
+
+/**
+ * Result of reading one BVH file: the skeleton, its animation and the
+ * scale that was applied to reach the requested target height.
+ * 
+ * Every call to BVHReader.read returns a fresh instance, so clips read on
+ * different threads never share any state.
+ */
+public class BVHClip {
+	private final File file;
+	private final Bone skeleton;
+	private final AnimData data;
+	private final double scale;
+	private final int startFrame;
+	
+	public BVHClip(File file, Bone skeleton, AnimData data, double scale)
+	{
+		this(file, skeleton, data, scale, 0);
+	}
+	
+	/**
+	 * @param startFrame frame of the file that is the first frame of data,
+	 *   if only part of the file was read
+	 */
+	public BVHClip(File file, Bone skeleton, AnimData data, double scale,
+			int startFrame)
+	{
+		this.file = file;
+		this.skeleton = skeleton;
+		this.data = data;
+		this.scale = scale;
+		this.startFrame = startFrame;
+	}
+	
+	public File getFile() {
+		return file;
+	}
+	
+	public Bone getSkeleton() {
+		return skeleton;
+	}
+	
+	public AnimData getData() {
+		return data;
+	}
+	
+	public double getScale() {
+		return scale;
+	}
+	
+	public int getStartFrame() {
+		return startFrame;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "<BVHClip " + file.getName() + " " + data + ">";
+	}
+}
@@ -0,0 +1,359 @@
+package mocap.reader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import javax.vecmath.Vector3d;
+
+import mocap.figure.AnimData;
+import mocap.reader.BVHReader.BVHJoint;
+import mocap.reader.BVHReader.BVHLeaf;
+
+/**
+ * Compiled binary copy of a BVH file (.bvhc), so that a clip can be
+ * reloaded without parsing any text.
+ * 
+ * Layout (big endian): magic, version, size, modification time and CRC32
+ * of the source file, frame time, number of frames and channels, max. root
+ * distance, the joint hierarchy in depth-first order (name, parent, dof,
+ * channel index, unscaled offset, optional end site), then the packed
+ * per-bone rotations (x,y,z,w per frame) and root translations (x,y,z per
+ * frame). The cache is only used if size, modification time and checksum
+ * of the source still match.
+ * 
+ * Cache files (and BVHFrameIndex files) are written next to the source
+ * file unless a cache directory has been set.
+ */
+public class BVHClipCache {
+
+	public static final String EXTENSION = ".bvhc";
+	private static final int MAGIC = 0x42564843; // "BVHC"
+	private static final int VERSION = 1;
+	private static final int HASH_CHUNK = 64 * 1024;
+	
+	private static File cacheDir = null;
+
+	/**
+	 * Cache contents: the header is decoded, the motion is read on demand
+	 * from the mapped file, so that frame ranges can be picked out without
+	 * touching the rest.
+	 */
+	static class Clip implements FrameSource {
+		BVHJoint root;
+		int channels;
+		double maxRootDistance;
+		float frameTime;
+		int frames;
+		private int numBones;
+		private FloatBuffer values;
+		private boolean hasTranslation;
+		
+		@Override
+		public boolean hasTranslations() {
+			return hasTranslation;
+		}
+		
+		@Override
+		public int getNumFrames() {
+			return frames;
+		}
+		
+		@Override
+		public int getNumBones() {
+			return numBones;
+		}
+		
+		@Override
+		public float getFps() {
+			return 1.f / frameTime;
+		}
+		
+		@Override
+		public AnimData read(int start, int end)
+		{
+			AnimData ad = new AnimData(numBones);
+			ad.setFps(getFps());
+			ad.setNumFrames(end - start);
+			for (int i = 0; i < numBones; i++)
+				ad.putBoneRotArray(i, getRotations(i, start, end));
+			if (hasTranslation)
+				ad.putBoneTransArray(getTranslations(start, end));
+			return ad;
+		}
+		
+		/**
+		 * @return rotations of one bone for the frames [start, end), as
+		 *   x,y,z,w per frame
+		 */
+		float[] getRotations(int bone, int start, int end)
+		{
+			float[] rot = new float[4 * (end - start)];
+			FloatBuffer fb = values.duplicate();
+			fb.position(4 * (bone * frames + start));
+			fb.get(rot);
+			return rot;
+		}
+		
+		/**
+		 * @return root translations for the frames [start, end), as x,y,z
+		 *   per frame
+		 */
+		float[] getTranslations(int start, int end)
+		{
+			float[] trans = new float[3 * (end - start)];
+			FloatBuffer fb = values.duplicate();
+			fb.position(4 * numBones * frames + 3 * start);
+			fb.get(trans);
+			return trans;
+		}
+	}
+
+	private BVHClipCache()
+	{
+	}
+
+	/**
+	 * @param dir directory for all cache files, or null to put each cache
+	 *   file next to its source
+	 */
+	public static synchronized void setCacheDir(File dir) {
+		cacheDir = dir;
+	}
+
+	public static File getCacheFile(File source)
+	{
+		return getCacheFile(source, EXTENSION);
+	}
+
+	/**
+	 * @return where to keep a file derived from source (.bvhc, .bvhi)
+	 */
+	static synchronized File getCacheFile(File source, String extension)
+	{
+		if (cacheDir == null) // x.bvh -> x.bvhc
+			return new File(source.getPath() + extension.substring(".bvh".length()));
+		// several directories may contain files with the same name
+		String path = source.getAbsolutePath();
+		return new File(cacheDir, source.getName() + "-"
+				+ Integer.toHexString(path.hashCode()) + extension);
+	}
+
+	/**
+	 * Checksum of the whole (mapped) source file.
+	 */
+	static long hash(ByteBuffer src)
+	{
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[HASH_CHUNK];
+		ByteBuffer b = src.duplicate();
+		b.clear();
+		while (b.hasRemaining()) {
+			int n = Math.min(chunk.length, b.remaining());
+			b.get(chunk, 0, n);
+			crc.update(chunk, 0, n);
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Loads the cache for the given source file.
+	 * 
+	 * @return the cached clip, or null if there is no valid, up-to-date
+	 *   cache file
+	 */
+	static Clip read(File source)
+	{
+		File file = getCacheFile(source);
+		if (!file.isFile() || !source.isFile())
+			return null;
+		try {
+			MappedByteBuffer b = BVHMotionParser.map(file);
+			if (b.getInt() != MAGIC || b.getInt() != VERSION)
+				return null;
+			if (b.getLong() != source.length() || b.getLong() != source.lastModified())
+				return null;
+			if (b.getLong() != hash(BVHMotionParser.map(source)))
+				return null;
+			
+			Clip clip = new Clip();
+			clip.frameTime = b.getFloat();
+			clip.frames = b.getInt();
+			clip.channels = b.getInt();
+			clip.maxRootDistance = b.getDouble();
+			
+			int numJoints = b.getInt();
+			List<BVHJoint> joints = new ArrayList<BVHJoint>(numJoints);
+			for (int i = 0; i < numJoints; i++) {
+				BVHJoint j = new BVHJoint();
+				byte[] name = new byte[b.getShort()];
+				b.get(name);
+				j.name = new String(name, "UTF-8");
+				int parent = b.getInt();
+				j.dof = b.getInt();
+				j.index = b.getInt();
+				j.offset = readVector(b);
+				if (b.get() != 0) {
+					j.endpt = new BVHLeaf();
+					j.endpt.offset = readVector(b);
+				}
+				if (parent < 0) {
+					j.isRoot = true;
+					clip.root = j;
+				} else {
+					joints.get(parent).children.add(j);
+				}
+				joints.add(j);
+			}
+			clip.hasTranslation = b.get() != 0;
+			clip.numBones = numJoints;
+			clip.values = b.slice().asFloatBuffer();
+			int expected = clip.frames * (4 * numJoints + (clip.hasTranslation ? 3 : 0));
+			if (clip.values.remaining() < expected)
+				throw new BufferUnderflowException();
+			return clip;
+		} catch (IOException e) {
+			Logger.getLogger(BVHClipCache.class.getName()).log(Level.WARNING,
+					"ignoring unreadable cache " + file, e);
+		} catch (BufferUnderflowException e) {
+			Logger.getLogger(BVHClipCache.class.getName()).log(Level.WARNING,
+					"ignoring truncated cache " + file, e);
+		}
+		return null;
+	}
+
+	/**
+	 * Writes the cache file for a freshly parsed source. Failing to write
+	 * (e.g. read-only data directory) is logged but not an error.
+	 * 
+	 * @param sourceBuf the mapped source file, used for the checksum
+	 * @param root joint hierarchy with unscaled offsets
+	 */
+	static void write(File source, ByteBuffer sourceBuf, BVHJoint root,
+			int channels, double maxRootDistance, float frameTime, AnimData data)
+	{
+		File file = getCacheFile(source);
+		try {
+			List<BVHJoint> joints = new ArrayList<BVHJoint>();
+			List<Integer> parents = new ArrayList<Integer>();
+			collect(root, -1, joints, parents);
+			
+			int frames = data.getNumFrames();
+			boolean hasTranslation = data.hasTranslations();
+			int size = 4 * 2 + 8 * 3 + 4 * 3 + 8 + 4 + 1;
+			for (BVHJoint j : joints)
+				size += 2 + j.name.getBytes("UTF-8").length + 4 * 3 + 8 * 3 + 1
+						+ (j.endpt != null ? 8 * 3 : 0);
+			size += 4 * 4 * frames * joints.size();
+			if (hasTranslation)
+				size += 4 * 3 * frames;
+			
+			ByteBuffer b = ByteBuffer.allocate(size);
+			b.putInt(MAGIC);
+			b.putInt(VERSION);
+			b.putLong(source.length());
+			b.putLong(source.lastModified());
+			b.putLong(hash(sourceBuf));
+			b.putFloat(frameTime);
+			b.putInt(frames);
+			b.putInt(channels);
+			b.putDouble(maxRootDistance);
+			
+			b.putInt(joints.size());
+			for (int i = 0; i < joints.size(); i++) {
+				BVHJoint j = joints.get(i);
+				byte[] name = j.name.getBytes("UTF-8");
+				b.putShort((short) name.length);
+				b.put(name);
+				b.putInt(parents.get(i));
+				b.putInt(j.dof);
+				b.putInt(j.index);
+				writeVector(b, j.offset);
+				b.put((byte) (j.endpt != null ? 1 : 0));
+				if (j.endpt != null)
+					writeVector(b, j.endpt.offset);
+			}
+			b.put((byte) (hasTranslation ? 1 : 0));
+			
+			FloatBuffer fb = b.asFloatBuffer();
+			for (int i = 0; i < joints.size(); i++)
+				fb.put(data.getBoneRotArray(i), 0, 4 * frames);
+			if (hasTranslation)
+				fb.put(data.getBoneTransArray(), 0, 3 * frames);
+			b.position(b.position() + 4 * fb.position());
+			b.flip();
+			replace(file, b);
+		} catch (IOException e) {
+			Logger.getLogger(BVHClipCache.class.getName()).log(Level.WARNING,
+					"could not write cache " + file, e);
+		}
+	}
+
+	/**
+	 * Replaces file with the remaining contents of b. Writes to a temporary
+	 * file first and moves it over the old file in one step, so that
+	 * readers never see a half-written file, concurrent writers don't
+	 * collide, and the old file stays if anything goes wrong (e.g. it is
+	 * still mapped on Windows); the caller then just parses the source.
+	 */
+	static void replace(File file, ByteBuffer b) throws IOException
+	{
+		File tmp = File.createTempFile(file.getName(), ".tmp",
+				file.getAbsoluteFile().getParentFile());
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		try {
+			raf.setLength(0);
+			while (b.hasRemaining())
+				raf.getChannel().write(b);
+		} finally {
+			raf.close();
+		}
+		try {
+			try {
+				Files.move(tmp.toPath(), file.toPath(),
+						StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), file.toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		}
+	}
+
+	private static void collect(BVHJoint j, int parent, List<BVHJoint> joints,
+			List<Integer> parents)
+	{
+		int index = joints.size();
+		joints.add(j);
+		parents.add(parent);
+		for (BVHJoint child : j.children)
+			collect(child, index, joints, parents);
+	}
+
+	private static Vector3d readVector(ByteBuffer b)
+	{
+		return new Vector3d(b.getDouble(), b.getDouble(), b.getDouble());
+	}
+
+	private static void writeVector(ByteBuffer b, Vector3d v)
+	{
+		b.putDouble(v.x);
+		b.putDouble(v.y);
+		b.putDouble(v.z);
+	}
+}
@@ -0,0 +1,238 @@
+package mocap.reader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import mocap.figure.AnimData;
+import mocap.figure.Bone;
+
+/**
+ * Byte offset of every line of the MOTION section of a BVH file, so that
+ * any frame range can be decoded straight from the (memory-mapped) text
+ * without parsing the frames before it. Use BVHReader.readIndex to get
+ * one; only the skeleton is built up front, the motion stays on disk.
+ *
+ * The offsets are found in one scan for line breaks and kept in a .bvhi
+ * file next to the source (or in the cache directory, see BVHClipCache).
+ * Layout (big endian): magic, version, size and modification time of the
+ * source, number of frames, then frames + 1 (long) offsets, the last one
+ * being the end of the last line. Unlike the clip cache the source is not
+ * checksummed, as that would mean reading the whole file again.
+ *
+ * Files larger than a single buffer can map (2 GB) are mapped a window
+ * at a time: the scan walks the file in windows, and decoding maps just
+ * the lines of the requested frames.
+ *
+ * Decoding only reads from the mapped file, so an index may be used from
+ * several threads at once.
+ */
+public class BVHFrameIndex implements FrameSource {
+
+	public static final String EXTENSION = ".bvhi";
+	private static final int MAGIC = 0x42564849; // "BVHI"
+	private static final int VERSION = 2;
+	private static final long SCAN_WINDOW = 1L << 30;
+
+	private final File source;
+	private final BVHMotionParser parser; // whole file, null if too large
+	private final long[] offsets;
+	private final int channels;
+	private final AnimDataSink layout;
+	private final Bone skeleton;
+	private final double scale;
+	private final float frameTime;
+
+	/**
+	 * @param parser of the whole file, or null to map the lines of each
+	 *   decoded range
+	 */
+	BVHFrameIndex(File source, BVHMotionParser parser, long[] offsets,
+			int channels, AnimDataSink layout, Bone skeleton, double scale,
+			float frameTime)
+	{
+		this.source = source;
+		this.parser = parser;
+		this.offsets = offsets;
+		this.channels = channels;
+		this.layout = layout;
+		this.skeleton = skeleton;
+		this.scale = scale;
+		this.frameTime = frameTime;
+	}
+
+	public File getFile() {
+		return source;
+	}
+
+	public Bone getSkeleton() {
+		return skeleton;
+	}
+
+	public double getScale() {
+		return scale;
+	}
+
+	@Override
+	public float getFps() {
+		return 1.f / frameTime;
+	}
+
+	@Override
+	public int getNumFrames() {
+		return offsets.length - 1;
+	}
+
+	@Override
+	public int getNumBones() {
+		return layout.rotations.length;
+	}
+
+	@Override
+	public boolean hasTranslations() {
+		return layout.hasTranslation;
+	}
+
+	public int getNumChannels() {
+		return channels;
+	}
+
+	/**
+	 * @return byte position of the line of the given frame in the file
+	 */
+	public long getFrameOffset(int frame) {
+		return offsets[frame];
+	}
+
+	/**
+	 * Decodes the frames [start, end) and hands their raw channel values to
+	 * the sink, numbered from 0.
+	 *
+	 * @return false if one of the lines is malformed
+	 * @throws IOException if the lines could not be mapped
+	 */
+	public boolean decode(int start, int end, MotionSink sink) throws IOException
+	{
+		checkRange(start, end);
+		if (start == end)
+			return true;
+		if (parser != null)
+			return parser.parseLines((int) offsets[start], end - start, channels, sink) >= 0;
+		BVHMotionParser lines = new BVHMotionParser(BVHMotionParser.map(source,
+				offsets[start], offsets[end] - offsets[start]));
+		return lines.parseLines(0, end - start, channels, sink) >= 0;
+	}
+
+	/**
+	 * Decodes the frames [start, end) into rotations and root translations.
+	 *
+	 * @throws IOException if one of the lines is malformed
+	 */
+	@Override
+	public AnimData read(int start, int end) throws IOException
+	{
+		AnimDataSink sink = new AnimDataSink(layout, end - start);
+		if (!decode(start, end, sink))
+			throw new IOException("Invalid motion data in " + source
+					+ " between frames " + start + " and " + end);
+		return sink.toAnimData(getFps());
+	}
+
+	private void checkRange(int start, int end)
+	{
+		if (start < 0 || end < start || end > getNumFrames())
+			throw new IndexOutOfBoundsException("frames " + start + "-" + end
+					+ " of " + getNumFrames());
+	}
+
+	/**
+	 * Finds the start of each of the given number of lines.
+	 *
+	 * @param dataStart position of the first motion line
+	 * @return frames + 1 offsets, or null if the file has fewer lines
+	 */
+	static long[] scan(File source, long dataStart, int frames) throws IOException
+	{
+		long limit = source.length();
+		long[] offsets = new long[frames + 1];
+		offsets[0] = dataStart;
+		int f = 0;
+		for (long pos = dataStart; pos < limit && f < frames; pos += SCAN_WINDOW) {
+			int size = (int) Math.min(SCAN_WINDOW, limit - pos);
+			ByteBuffer buf = BVHMotionParser.map(source, pos, size);
+			for (int i = 0; i < size && f < frames; i++) {
+				if (buf.get(i) == '\n')
+					offsets[++f] = pos + i + 1;
+			}
+		}
+		if (f < frames) {
+			// the last line need not end with a line break
+			if (f < frames - 1 || offsets[f] >= limit)
+				return null;
+			offsets[++f] = limit;
+		}
+		return offsets;
+	}
+
+	/**
+	 * @return the offsets from the index file of source, or null if there
+	 *   is no valid, up-to-date one
+	 */
+	static long[] load(File source, long dataStart, int frames)
+	{
+		File file = BVHClipCache.getCacheFile(source, EXTENSION);
+		if (!file.isFile())
+			return null;
+		try {
+			MappedByteBuffer b = BVHMotionParser.map(file);
+			if (b.getInt() != MAGIC || b.getInt() != VERSION)
+				return null;
+			if (b.getLong() != source.length() || b.getLong() != source.lastModified())
+				return null;
+			if (b.getInt() != frames)
+				return null;
+			long[] offsets = new long[frames + 1];
+			b.asLongBuffer().get(offsets);
+			if (offsets[0] != dataStart)
+				return null;
+			return offsets;
+		} catch (IOException e) {
+			Logger.getLogger(BVHFrameIndex.class.getName()).log(Level.WARNING,
+					"ignoring unreadable index " + file, e);
+		} catch (BufferUnderflowException e) {
+			Logger.getLogger(BVHFrameIndex.class.getName()).log(Level.WARNING,
+					"ignoring truncated index " + file, e);
+		}
+		return null;
+	}
+
+	/**
+	 * Writes the index file of source. Failing to write is logged but not
+	 * an error.
+	 */
+	static void save(File source, long[] offsets)
+	{
+		File file = BVHClipCache.getCacheFile(source, EXTENSION);
+		try {
+			ByteBuffer b = ByteBuffer.allocate(4 * 2 + 8 * 2 + 4 + 8 * offsets.length);
+			b.putInt(MAGIC);
+			b.putInt(VERSION);
+			b.putLong(source.length());
+			b.putLong(source.lastModified());
+			b.putInt(offsets.length - 1);
+			LongBuffer lb = b.asLongBuffer();
+			lb.put(offsets);
+			b.position(b.position() + 8 * offsets.length);
+			b.flip();
+			BVHClipCache.replace(file, b);
+		} catch (IOException e) {
+			Logger.getLogger(BVHFrameIndex.class.getName()).log(Level.WARNING,
+					"could not write index " + file, e);
+		}
+	}
+}
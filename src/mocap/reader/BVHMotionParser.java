@@ -0,0 +1,474 @@
+package mocap.reader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Tokenizes the numeric part of a BVH file straight from a (memory-mapped)
+ * byte buffer. Numbers are scanned by hand so that no String or boxed value
+ * is created per token; the result is bit-identical to Double.parseDouble.
+ *
+ * All reads are absolute, so one parser may be shared by several threads,
+ * which is what parseFramesParallel does.
+ */
+public class BVHMotionParser {
+
+	private static final byte LF = '\n', CR = '\r', SPACE = ' ', TAB = '\t';
+
+	// largest mantissa that is still exact as a double
+	private static final long MAX_EXACT_MANTISSA = 1L << 53;
+	private static final int MAX_EXACT_POW10 = 22;
+	private static final double[] POW10 = new double[MAX_EXACT_POW10 + 1];
+	static {
+		POW10[0] = 1;
+		for (int i = 1; i < POW10.length; i++)
+			POW10[i] = POW10[i - 1] * 10;
+	}
+
+	// chunks per worker thread, for some load balancing between workers
+	private static final int CHUNKS_PER_THREAD = 4;
+	// below this many bytes per chunk splitting does not pay off
+	private static final int MIN_CHUNK_SIZE = 64 * 1024;
+	private static ForkJoinPool pool;
+
+	/** largest file (or window of a file) a single buffer can map */
+	public static final long MAX_MAP_SIZE = Integer.MAX_VALUE;
+
+	private final ByteBuffer buf;
+	private final int limit;
+
+	public BVHMotionParser(ByteBuffer buf)
+	{
+		this.buf = buf;
+		this.limit = buf.limit();
+	}
+
+	/**
+	 * Maps the given file read-only into memory.
+	 *
+	 * @throws IOException also if the file is larger than MAX_MAP_SIZE
+	 *   (such files can only be read with BVHReader.readLazy)
+	 */
+	public static MappedByteBuffer map(File file) throws IOException
+	{
+		return map(file, 0, -1);
+	}
+
+	/**
+	 * Maps size bytes of the given file from position on read-only into
+	 * memory, or up to the end of the file if size is negative.
+	 *
+	 * @throws IOException also if the window is larger than MAX_MAP_SIZE
+	 */
+	public static MappedByteBuffer map(File file, long position, long size)
+			throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel ch = raf.getChannel();
+			if (size < 0)
+				size = ch.size() - position;
+			if (size > MAX_MAP_SIZE)
+				throw new IOException(file + ": cannot map " + size
+						+ " bytes at once (more than 2 GB)");
+			return ch.map(FileChannel.MapMode.READ_ONLY, position, size);
+		} finally {
+			raf.close();
+		}
+	}
+
+	public ByteBuffer getBuffer() {
+		return buf;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * @return position of the first byte after the line terminator of the
+	 *   line containing pos (or the buffer limit)
+	 */
+	public int nextLine(int pos)
+	{
+		while (pos < limit) {
+			if (buf.get(pos++) == LF)
+				return pos;
+		}
+		return limit;
+	}
+
+	/**
+	 * @return position of the line terminator ('\r' or '\n') of the line
+	 *   starting at pos, or the buffer limit
+	 */
+	public int lineEnd(int pos)
+	{
+		while (pos < limit) {
+			byte b = buf.get(pos);
+			if (b == LF || b == CR)
+				return pos;
+			pos++;
+		}
+		return limit;
+	}
+
+	/**
+	 * Searches for a line that exactly matches the given keyword.
+	 *
+	 * @return start position of that line or -1 if there is none
+	 */
+	public int findLine(int pos, String keyword)
+	{
+		int n = keyword.length();
+		while (pos < limit) {
+			int end = lineEnd(pos);
+			if (end - pos == n) {
+				int i = 0;
+				while (i < n && buf.get(pos + i) == keyword.charAt(i))
+					i++;
+				if (i == n)
+					return pos;
+			}
+			pos = nextLine(end);
+		}
+		return -1;
+	}
+
+	/**
+	 * Decodes the bytes [start, end) as ISO-8859-1 text. Only meant for the
+	 * (small) hierarchy and header parts of the file.
+	 */
+	public String getText(int start, int end)
+	{
+		char[] chars = new char[end - start];
+		for (int i = start; i < end; i++)
+			chars[i - start] = (char) (buf.get(i) & 0xff);
+		return new String(chars);
+	}
+
+	/**
+	 * @return true if pos points at a line that contains nothing but
+	 *   whitespace (or pos is at the end of the buffer)
+	 */
+	public boolean isBlank(int pos)
+	{
+		while (pos < limit) {
+			byte b = buf.get(pos++);
+			if (b == LF)
+				return true;
+			if (b != SPACE && b != TAB && b != CR)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Parses one line of motion values.
+	 *
+	 * @param pos start of the line
+	 * @param values the values are written here, starting at offset
+	 * @param offset first index in values to fill
+	 * @param count number of values expected on this line
+	 * @return start of the next line, or -1 if the line does not consist of
+	 *   exactly count numbers
+	 */
+	public int parseLine(int pos, double[] values, int offset, int count)
+	{
+		int n = 0;
+		while (pos < limit) {
+			byte b = buf.get(pos);
+			if (b == SPACE || b == TAB || b == CR) {
+				pos++;
+			} else if (b == LF) {
+				pos++;
+				break;
+			} else {
+				if (n == count)
+					return -1;
+				pos = parseNumber(pos, values, offset + n);
+				if (pos < 0)
+					return -1;
+				n++;
+			}
+		}
+		return n == count ? pos : -1;
+	}
+
+	/**
+	 * Parses all motion lines starting at pos, one line per frame, on the
+	 * calling thread, and hands each line to the sink.
+	 *
+	 * @param frames number of lines expected
+	 * @param count number of values on each line
+	 * @return false if there are fewer or more (non-blank) lines than frames
+	 *   or if a line is malformed
+	 */
+	public boolean parseFrames(int pos, int frames, int count, MotionSink sink)
+	{
+		pos = parseLines(pos, frames, count, sink);
+		return pos >= 0 && isBlankUntilEnd(pos);
+	}
+
+	/**
+	 * Parses the given number of lines starting at pos and hands them to the
+	 * sink, numbered from 0.
+	 *
+	 * @return start of the line after the last one parsed, or -1 if the
+	 *   buffer ends early or a line is malformed
+	 */
+	public int parseLines(int pos, int lines, int count, MotionSink sink)
+	{
+		double[] row = new double[count];
+		for (int f = 0; f < lines; f++) {
+			if (pos >= limit) {
+				//I.e., if the actual number of frames in the file
+				//is less than the number it says there are
+				return -1;
+			}
+			pos = parseLine(pos, row, 0, count);
+			if (pos < 0)
+				return -1;
+			sink.frame(f, row);
+		}
+		return pos;
+	}
+
+	/**
+	 * Same as parseFrames, but splits the byte range at line boundaries and
+	 * decodes the chunks on a fork-join pool. Each chunk first counts its
+	 * lines so that it knows which frame slots it owns, then decodes them
+	 * and passes them on to the sink, which therefore gets called from
+	 * several threads at once. The values are identical to parseFrames.
+	 */
+	public boolean parseFramesParallel(int pos, int frames, int count, MotionSink sink)
+	{
+		ForkJoinPool fjPool = getPool();
+		int numChunks = Math.min(fjPool.getParallelism() * CHUNKS_PER_THREAD,
+				(limit - pos) / MIN_CHUNK_SIZE);
+		if (numChunks < 2)
+			return parseFrames(pos, frames, count, sink);
+
+		// chunk boundaries, moved forward to the next line start
+		List<MotionChunk> chunks = new ArrayList<MotionChunk>(numChunks);
+		long size = limit - pos;
+		int start = pos;
+		for (int i = 1; i <= numChunks && start < limit; i++) {
+			int end = i == numChunks ? limit : (int) (pos + size * i / numChunks);
+			if (end > start)
+				end = nextLine(end - 1);
+			if (end <= start)
+				continue;
+			chunks.add(new MotionChunk(start, end, frames, count, sink));
+			start = end;
+		}
+
+		// pass 1: count lines per chunk, then assign frame numbers
+		fjPool.invoke(new ChunkPass(chunks, false));
+		int frame = 0;
+		for (MotionChunk c : chunks) {
+			c.firstFrame = frame;
+			frame += c.lines;
+		}
+		if (frame < frames)
+			return false;
+
+		// pass 2: decode
+		fjPool.invoke(new ChunkPass(chunks, true));
+		for (MotionChunk c : chunks) {
+			if (!c.ok)
+				return false;
+		}
+		return true;
+	}
+
+	private static synchronized ForkJoinPool getPool()
+	{
+		if (pool == null)
+			pool = new ForkJoinPool();
+		return pool;
+	}
+
+	private boolean isBlankUntilEnd(int pos)
+	{
+		//If there were more lines in the file than it said there were
+		while (pos < limit) {
+			if (!isBlank(pos))
+				return false;
+			pos = nextLine(pos);
+		}
+		return true;
+	}
+
+	/**
+	 * Byte range [start, end) of the MOTION section that starts and ends on
+	 * a line boundary.
+	 */
+	private class MotionChunk {
+		final int start, end;
+		final int frames, count;
+		final MotionSink sink;
+		int lines;
+		int firstFrame;
+		boolean ok;
+
+		MotionChunk(int start, int end, int frames, int count, MotionSink sink)
+		{
+			this.start = start;
+			this.end = end;
+			this.frames = frames;
+			this.count = count;
+			this.sink = sink;
+		}
+
+		void countLines()
+		{
+			int n = 0;
+			for (int p = start; p < end; p = nextLine(p))
+				n++;
+			lines = n;
+		}
+
+		void decode()
+		{
+			double[] row = new double[count];
+			int p = start;
+			int f = firstFrame;
+			while (p < end && f < frames) {
+				p = parseLine(p, row, 0, count);
+				if (p < 0)
+					return;
+				sink.frame(f++, row);
+			}
+			// lines beyond the announced number of frames must be empty
+			for (; p < end; p = nextLine(p)) {
+				if (!isBlank(p))
+					return;
+			}
+			ok = true;
+		}
+	}
+
+	private static class ChunkPass extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final List<MotionChunk> chunks;
+		private final boolean decode;
+
+		ChunkPass(List<MotionChunk> chunks, boolean decode)
+		{
+			this.chunks = chunks;
+			this.decode = decode;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (chunks.size() == 1) {
+				if (decode)
+					chunks.get(0).decode();
+				else
+					chunks.get(0).countLines();
+			} else {
+				int mid = chunks.size() / 2;
+				invokeAll(new ChunkPass(chunks.subList(0, mid), decode),
+						new ChunkPass(chunks.subList(mid, chunks.size()), decode));
+			}
+		}
+	}
+
+	/**
+	 * Scans a single decimal number starting at pos and stores it in
+	 * values[index]. Numbers whose mantissa and decimal exponent are both
+	 * exactly representable are computed with a single (correctly rounded)
+	 * floating point operation; anything else falls back to
+	 * Double.parseDouble.
+	 *
+	 * @return position after the number or -1 if it is malformed
+	 */
+	private int parseNumber(int pos, double[] values, int index)
+	{
+		int start = pos;
+		boolean negative = false;
+		byte b = buf.get(pos);
+		if (b == '-' || b == '+') {
+			negative = b == '-';
+			pos++;
+		}
+
+		long mantissa = 0;
+		int digits = 0;      // significant digits in mantissa
+		int fracDigits = 0;  // digits after the decimal point
+		boolean seenDigit = false, seenDot = false, exact = true;
+
+		for (; pos < limit; pos++) {
+			b = buf.get(pos);
+			if (b >= '0' && b <= '9') {
+				seenDigit = true;
+				if (mantissa != 0 || b != '0')
+					digits++;
+				if (digits > 18)
+					exact = false;
+				else
+					mantissa = mantissa * 10 + (b - '0');
+				if (seenDot)
+					fracDigits++;
+			} else if (b == '.' && !seenDot) {
+				seenDot = true;
+			} else {
+				break;
+			}
+		}
+		if (!seenDigit)
+			return -1;
+
+		int exp = 0;
+		if (pos < limit && (buf.get(pos) == 'e' || buf.get(pos) == 'E')) {
+			pos++;
+			boolean negExp = false;
+			if (pos < limit && (buf.get(pos) == '-' || buf.get(pos) == '+')) {
+				negExp = buf.get(pos) == '-';
+				pos++;
+			}
+			int expStart = pos;
+			while (pos < limit && buf.get(pos) >= '0' && buf.get(pos) <= '9') {
+				if (exp < 10000)
+					exp = exp * 10 + (buf.get(pos) - '0');
+				pos++;
+			}
+			if (pos == expStart)
+				return -1;
+			if (negExp)
+				exp = -exp;
+		}
+
+		// number has to be followed by whitespace or the end of the line
+		if (pos < limit) {
+			b = buf.get(pos);
+			if (b != SPACE && b != TAB && b != CR && b != LF)
+				return -1;
+		}
+
+		int scale = exp - fracDigits;
+		if (exact && mantissa < MAX_EXACT_MANTISSA
+				&& scale >= -MAX_EXACT_POW10 && scale <= MAX_EXACT_POW10) {
+			double v = scale < 0 ? mantissa / POW10[-scale]
+			                     : mantissa * POW10[scale];
+			values[index] = negative ? -v : v;
+		} else {
+			try {
+				values[index] = Double.parseDouble(getText(start, pos));
+			} catch (NumberFormatException e) {
+				return -1;
+			}
+		}
+		return pos;
+	}
+}
@@ -2,31 +2,57 @@ package mocap.reader;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Scanner;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.vecmath.Vector3d;
 
 import mocap.figure.AnimData;
 import mocap.figure.Bone;
+import mocap.figure.KeyframeReducer;
+import mocap.figure.QuantizedAnimData;
 
+/**
+ * Reads skeleton and motion from BVH files.
+ * 
+ * Use read() to load files: it only reads the options of this object and
+ * keeps all parse state per call, so one reader may be used from many
+ * threads at once. readFile() is the older interface that leaves its
+ * results in the public fields of the reader.
+ */
 public class BVHReader {
 
 	public Bone skeleton;
 	
-	public static AnimData data;
-	public static double scale = 1.0;
+	public AnimData data;
+	public double scale = 1.0;
 	
 	private double[][] motValues;
 	private int indexCounter;
 	private float targetHeight;
 	private double maxRootDistance; 
 	private List<Bone> allBones;
+	private double offsetScale = 1.0; // applied to the joint offsets
+	private BVHJoint root;
+	private float frameTime;
+	private int numFrames;
+	private boolean motionRead = false;
+	private boolean parallel = false;
+	private boolean keepMotionValues = false;
+	private boolean useCache = true;
+	private boolean compress = false;
+	private double maxAngle = -1, maxDistance; // keyframe tolerances
 	
-	abstract class BVHNode { Vector3d offset; }
-	class BVHLeaf extends BVHNode { }
-	class BVHJoint extends BVHNode 
+	private static final int NO_MOTION = -1, MALFORMED = -2;
+	
+	static abstract class BVHNode { Vector3d offset; }
+	static class BVHLeaf extends BVHNode { }
+	static class BVHJoint extends BVHNode 
 	{
 		String name;
 		ArrayList<BVHJoint> children = new ArrayList<BVHJoint>();
@@ -34,36 +60,312 @@ public class BVHReader {
 		int index;
 		boolean isRoot = false;
 		BVHLeaf endpt = null;
+	}
+	
+	public BVHReader()
+	{
+	}
+	
+	/**
+	 * Creates a reader for a single parse with the options of the given one.
+	 */
+	private BVHReader(BVHReader options)
+	{
+		parallel = options.parallel;
+		keepMotionValues = options.keepMotionValues;
+		useCache = options.useCache;
+		compress = options.compress;
+		maxAngle = options.maxAngle;
+		maxDistance = options.maxDistance;
+	}
+	
+	/**
+	 * When set, the MOTION lines are decoded in chunks on a fork-join pool
+	 * instead of on the calling thread. Pays off for long captures.
+	 */
+	public void setParallel(boolean val) {
+		parallel = val;
+	}
+	
+	/**
+	 * Debug mode: additionally keep the raw channel values of every frame,
+	 * see getMotVals(). Off by default since it multiplies peak memory.
+	 */
+	public void setKeepMotionValues(boolean val) {
+		keepMotionValues = val;
+	}
+	
+	/**
+	 * When set (the default), a compiled binary copy of every successfully
+	 * read file is kept (see BVHClipCache) and used instead of the text
+	 * whenever it is still up to date.
+	 */
+	public void setUseCache(boolean val) {
+		useCache = val;
+	}
+	
+	/**
+	 * When set, the clips returned by read() have their rotations packed
+	 * into 48 bits each, see QuantizedAnimData. Ratio and error of every
+	 * clip are logged.
+	 */
+	public void setCompress(boolean val) {
+		compress = val;
+	}
+	
+	/**
+	 * Turns on keyframe reduction for the clips returned by read(): frames
+	 * that slerp (and linear interpolation for the root) rebuild within the
+	 * given tolerances are dropped, see KeyframeReducer. Takes precedence
+	 * over setCompress.
+	 * 
+	 * @param maxAngle radians, or a negative value to switch reduction off
+	 * @param maxDistance root translation tolerance, in the file's units
+	 */
+	public void setKeyframeTolerance(double maxAngle, double maxDistance) {
+		this.maxAngle = maxAngle;
+		this.maxDistance = maxDistance;
+	}
+	
+	/**
+	 * Reads a BVH file. Safe to call concurrently, each call uses its own
+	 * parse state and returns its own result.
+	 * 
+	 * @param bvhFile the file to read from
+	 * @param targetHeight height the skeleton is scaled to, or -1
+	 * @throws IOException if the file could not be read or is not a valid
+	 *   BVH file
+	 */
+	public BVHClip read(File bvhFile, float targetHeight) throws IOException {
+		BVHReader r = new BVHReader(this);
+		if (!r.readFile(bvhFile, targetHeight) || !r.motionRead)
+			throw new IOException("Invalid BVH file: " + bvhFile);
+		return compressed(new BVHClip(bvhFile, r.skeleton, r.data, r.scale));
+	}
+	
+	/**
+	 * Reads only some frame ranges of a BVH file. Frames outside of the
+	 * ranges are skipped without being decoded, which saves time and memory
+	 * when only short windows of a long capture are needed. Safe to call
+	 * concurrently.
+	 * 
+	 * With caching on, an up-to-date .bvhc file is used if there is one;
+	 * if not, the whole file is parsed once so that the cache is written
+	 * and later reads can skip the text altogether.
+	 * 
+	 * @param ranges {start, end} pairs, end exclusive (as in subCopy)
+	 * @return one clip per range, in the given order; they all share the
+	 *   same skeleton
+	 * @throws IOException if the file could not be read, is not a valid
+	 *   BVH file or does not contain a requested range
+	 */
+	public List<BVHClip> read(File bvhFile, float targetHeight, int[][] ranges)
+			throws IOException {
+		BVHReader r = new BVHReader(this);
+		r.targetHeight = targetHeight;
+		BVHClipCache.Clip cached = useCache ? BVHClipCache.read(bvhFile) : null;
+		List<BVHClip> clips;
+		if (cached != null)
+			clips = r.readCacheRanges(bvhFile, cached, ranges);
+		else if (useCache)
+			clips = r.readFullRanges(bvhFile, ranges);
+		else
+			clips = r.parseRanges(bvhFile, 
+					new BVHMotionParser(BVHMotionParser.map(bvhFile)), ranges);
+		for (int i = 0; i < clips.size(); i++)
+			clips.set(i, compressed(clips.get(i)));
+		return clips;
+	}
+	
+	private BVHClip compressed(BVHClip clip)
+	{
+		AnimData data;
+		if (maxAngle >= 0)
+			data = new KeyframeReducer(maxAngle, maxDistance).reduce(clip.getData());
+		else if (compress)
+			data = new QuantizedAnimData(clip.getData());
+		else
+			return clip;
+		Logger.getLogger(BVHReader.class.getName()).log(Level.INFO,
+				clip.getFile().getName() + " " + clip.getStartFrame() + ": " + data);
+		return new BVHClip(clip.getFile(), clip.getSkeleton(), data,
+				clip.getScale(), clip.getStartFrame());
+	}
+	
+	/**
+	 * Reads the skeleton of a BVH file and indexes its motion lines without
+	 * decoding them, see BVHFrameIndex. For captures too long to keep in
+	 * memory. Safe to call concurrently.
+	 * 
+	 * @throws IOException if the file could not be read or is not a valid
+	 *   BVH file
+	 */
+	public BVHFrameIndex readIndex(File bvhFile, float targetHeight)
+			throws IOException {
+		BVHReader r = new BVHReader(this);
+		r.targetHeight = targetHeight;
+		// files too large to map at once are only mapped up to the limit
+		// for the header, and a range at a time for decoding
+		boolean mapAll = bvhFile.length() <= BVHMotionParser.MAX_MAP_SIZE;
+		BVHMotionParser parser = new BVHMotionParser(BVHMotionParser.map(bvhFile, 0,
+				mapAll ? -1 : BVHMotionParser.MAX_MAP_SIZE));
+		int dataStart = r.parseHeader(parser);
+		if (dataStart < 0)
+			throw new IOException("Invalid BVH file: " + bvhFile);
+		AnimDataSink layout = new AnimDataSink(r.allBones, 0);
+		r.resetBoneIndices();
 		
-		void scale(double scale) {
-
-			offset.scale(scale);
-			for (BVHJoint j : children) {
-				j.scale(scale);
-			}
-			if (endpt != null) {
-				endpt.offset.scale(scale);
-			}
-			// System.out.println("scale " + name + ": " + offset);
+		long[] offsets = useCache ? BVHFrameIndex.load(bvhFile, dataStart, r.numFrames) : null;
+		if (offsets == null) {
+			offsets = BVHFrameIndex.scan(bvhFile, dataStart, r.numFrames);
+			if (offsets == null)
+				throw new IOException("Invalid BVH file: " + bvhFile);
+			if (useCache)
+				BVHFrameIndex.save(bvhFile, offsets);
 		}
+		return new BVHFrameIndex(bvhFile, mapAll ? parser : null, offsets, r.indexCounter,
+				layout, r.skeleton, r.scale, r.frameTime);
 	}
 	
-	public static void resetAnimData() { //for clearing the scene
-		data = null;
+	/**
+	 * Reads the skeleton of a BVH file but leaves the motion on disk: the
+	 * clip's data is a LazyAnimData that decodes blocks of frames on
+	 * demand, from the clip cache if there is an up-to-date one and from
+	 * the text (through a BVHFrameIndex) otherwise. For clips larger than
+	 * the heap.
+	 * 
+	 * @throws IOException if the file could not be read or is not a valid
+	 *   BVH file
+	 */
+	public BVHClip readLazy(File bvhFile, float targetHeight) throws IOException {
+		// (the cache of a file too large to map would be too)
+		if (useCache && bvhFile.length() <= BVHMotionParser.MAX_MAP_SIZE) {
+			BVHClipCache.Clip clip = BVHClipCache.read(bvhFile);
+			if (clip != null) {
+				BVHReader r = new BVHReader(this);
+				r.targetHeight = targetHeight;
+				r.initFromCache(clip);
+				return new BVHClip(bvhFile, r.skeleton, new LazyAnimData(clip), r.scale);
+			}
+		}
+		BVHFrameIndex index = readIndex(bvhFile, targetHeight);
+		return new BVHClip(bvhFile, index.getSkeleton(), new LazyAnimData(index),
+				index.getScale());
 	}
 	
 	/**
-	 * Reads a BVH file. Stores
-	 * the motion vales in the motValues 2-D array.
+	 * Reads a BVH file. Each channel value is converted to its final
+	 * rotation (quaternion) or translation as soon as it is parsed. The raw
+	 * values are only kept in the motValues 2-D array if requested with
+	 * setKeepMotionValues.
+	 * 
+	 * The file is memory-mapped; the (small) hierarchy is read line by line
+	 * while the MOTION section is tokenized directly from the mapped bytes
+	 * by a BVHMotionParser. If caching is on, an up-to-date .bvhc file is
+	 * loaded instead, and one is written after parsing the text.
+	 * 
 	 * @param bvhFile the file to read from
 	 * @return True if the file was successfully read from. False if the file
 	 *   could not be read from, was missing information, or was incorrectly
 	 *   formatted in any way.
 	 * @throws FileNotFoundException if the file could not be found.
+	 * @throws IOException if the file could not be mapped into memory.
 	 */
-	public boolean readFile(File bvhFile, float targetHeight) throws FileNotFoundException {
-		Scanner in = new Scanner(bvhFile);
+	public boolean readFile(File bvhFile, float targetHeight) throws IOException {
 		this.targetHeight = targetHeight;
+		if (useCache && !keepMotionValues && readCache(bvhFile))
+			return true;
+		
+		ByteBuffer buf = BVHMotionParser.map(bvhFile);
+		if (!parseFile(new BVHMotionParser(buf)))
+			return false;
+		if (useCache && motionRead)
+			BVHClipCache.write(bvhFile, buf, root, indexCounter,
+					maxRootDistance, frameTime, data);
+		return true;
+	}
+	
+	private boolean readCache(File bvhFile) {
+		BVHClipCache.Clip clip = BVHClipCache.read(bvhFile);
+		if (clip == null)
+			return false;
+		
+		initFromCache(clip);
+		data = clip.read(0, clip.frames);
+		motionRead = true;
+		return true;
+	}
+	
+	private List<BVHClip> readCacheRanges(File bvhFile, BVHClipCache.Clip clip,
+			int[][] ranges) throws IOException {
+		initFromCache(clip);
+		checkRanges(bvhFile, ranges);
+		List<BVHClip> clips = new ArrayList<BVHClip>(ranges.length);
+		for (int[] range : ranges)
+			clips.add(new BVHClip(bvhFile, skeleton,
+					clip.read(range[0], range[1]), scale, range[0]));
+		return clips;
+	}
+	
+	/**
+	 * Parses the whole file (writing the cache) and cuts the ranges from it.
+	 */
+	private List<BVHClip> readFullRanges(File bvhFile, int[][] ranges)
+			throws IOException {
+		if (!readFile(bvhFile, targetHeight) || !motionRead)
+			throw new IOException("Invalid BVH file: " + bvhFile);
+		checkRanges(bvhFile, ranges);
+		List<BVHClip> clips = new ArrayList<BVHClip>(ranges.length);
+		for (int[] range : ranges)
+			clips.add(new BVHClip(bvhFile, skeleton,
+					data.subCopy(range[0], range[1]), scale, range[0]));
+		return clips;
+	}
+	
+	private void initFromCache(BVHClipCache.Clip clip) {
+		root = clip.root;
+		indexCounter = clip.channels;
+		maxRootDistance = clip.maxRootDistance;
+		frameTime = clip.frameTime;
+		numFrames = clip.frames;
+		initSkeleton();
+		resetBoneIndices();
+	}
+	
+	private boolean parseFile(BVHMotionParser parser) {
+		int pos = parseHeader(parser);
+		if (pos == NO_MOTION)
+			return true;
+		if (pos < 0)
+			return false;
+		
+		// decode every line straight into the final rotation and
+		// translation storage, no intermediate frames x channels matrix
+		AnimDataSink sink = new AnimDataSink(allBones, numFrames);
+		motValues = keepMotionValues ? new double[numFrames][] : null;
+		sink.rawValues = motValues;
+		boolean ok = parallel
+				? parser.parseFramesParallel(pos, numFrames, indexCounter, sink)
+				: parser.parseFrames(pos, numFrames, indexCounter, sink);
+		if (!ok)
+			return false;
+		
+		data = toAnimData(sink);
+		motionRead = true;
+		return true;
+	}
+	
+	/**
+	 * Reads the hierarchy (and builds the skeleton) and the header of the
+	 * MOTION section.
+	 * 
+	 * @return start of the first motion line, NO_MOTION if the file has no
+	 *   MOTION section or MALFORMED
+	 */
+	private int parseHeader(BVHMotionParser parser) {
+		int motionPos = parser.findLine(0, "MOTION");
+		int headerEnd = motionPos < 0 ? parser.getLimit() : motionPos;
+		Scanner in = new Scanner(parser.getText(0, headerEnd));
 		while (in.hasNextLine()) {
 			String line = in.nextLine();
 			
@@ -71,176 +373,135 @@ public class BVHReader {
 			{
 				// skip to next line
 				if (!in.hasNextLine()) //there should be more lines
-					return false;
+					return MALFORMED;
 				line = in.nextLine().trim();
 				if (line.startsWith("ROOT"))
 				{
-					BVHJoint root = readBones(in, null, line.substring(line.indexOf(" ") + 1));
+					root = readBones(in, null, line.substring(line.indexOf(" ") + 1));
 					root.isRoot = true;
-					if (targetHeight > -1) {
-						//TODO: I'm not sure about this 10, it was a 2 in the 
-						//original code but the figure was still too big so...
-						double s = targetHeight / (10 * maxRootDistance);
-						 System.out.println("### scaling: " + s);
-						root.scale(s);
-						scale = s;
-					}
-					allBones = new ArrayList<Bone>();
-					this.skeleton = processBVHNodes(root, null);
-					this.skeleton.scale(this.scale);
+					initSkeleton();
 				}
 			}
-			
-			if (line.equals("MOTION")) {
-				//"Frames: XX"
-				if (!in.hasNextLine()) //there should be more lines
-					return false;
-				line = in.nextLine();
-				if (line.indexOf("Frames") < 0) //the next line should be "Frames: XX"
-					return false;
-				int frames = 0;
-				try {
-					frames = Integer.parseInt(line.substring(line.indexOf(" ")).trim());
-				} catch (NumberFormatException e) {
-					return false;
-				}
-				
-				//"Frame Time: XX"
-				if (!in.hasNextLine())
-					return false;
-				line = in.nextLine();
-				if (line.indexOf("Frame Time") < 0)
-					return false;
-				String[] tokens = line.split(" ");
-				float frameTime = 0; //TODO: not sure what this is for but
-									  //I assume we need it!
-				try {
-					frameTime = Float.parseFloat(tokens[2]);
-				} catch (NumberFormatException e) {
-					return false;
-				}
-				
-				//Now read in all the numbers
-				if (!in.hasNextLine())
-					return false;
-				line = in.nextLine();
-				String[] nums = line.split(" ");
-				motValues = new double[frames][nums.length];
-				try {
-					for (int i=0; i<nums.length; i++) {
-						motValues[0][i] = Double.parseDouble(nums[i]);
-					}
-					
-					int frameCount = 1;
-					while (in.hasNextLine()) {
-						line = in.nextLine();
-						nums = line.split(" ");
-						
-						for (int i=0; i<nums.length; i++) {
-							motValues[frameCount][i] = Double.parseDouble(nums[i]);
-						}
-						
-						frameCount++;
-					}
-					
-					if (frameCount < frames) {
-						//I.e., if the actual number of frames in the file
-						//is less than the number it says there are
-						return false;
-					}
-					
-				} catch (NumberFormatException e) {
-					return false;
-				} catch (IndexOutOfBoundsException e) {
-					//If there were more lines in the file than it said there were
-					return false;
-				}
-				
-				// use the AnimData object to hold this data
-				//if (data == null) {
-					data = new AnimData(allBones.size());
-					data.setFps(1.f / frameTime);
-					data.setNumFrames(frames);
-				//}
-				
-				// float[][] motion = new float[allBones.size()][];
-				
-				float[][] rotation  = new float[allBones.size()][];
-				float[] translation = new float[3 * frames];				
-				
-				// for each line, separate out each bone's motions
-				for (int i = 0; i < allBones.size(); i++)
-				{
-					Bone b = allBones.get(i);
-					int dof = b.getDOF();
-					// motion[i] = new float[dof * frames]; // initialize this bone's movements
-
-					rotation[i] = new float[3 * frames];
-					
-					int index = b.getIndex();  // gets the starting index of this 
-											   // bone's motion in any frame line
-					for (int f = 0; f < motValues.length; f++)
-					{
-						int motionIndex = 3 * f; // base index for frame-based 
-						                         // indexing for each bone
-						
-						if (dof == 6)
-						{
-							for (int d = 0; d < 3; d++)
-							{
-								// get translations
-								translation[motionIndex + d] = (float)motValues[f][index + d];
-								
-								// get the rotations
-								float v = (float)Math.toRadians((float)motValues[f][index + d + 3]);
-								rotation[i][motionIndex + d] = v;
-							}
-						} else {
-							for (int d = 0; d < 3; d++)
-							{
-								float v = (float)Math.toRadians((float)motValues[f][index + d]);
-								rotation[i][motionIndex + d] = v;
-							}
-						}
-
-						/*
-						// force the translation, if it exists, to the end of the vector to 
-						// match the TX,TY,TZ in Bone.java
-						if (dof == 6)
-						{
-							for (int d = 0; d < 3; d++)
-								motion[i][motionIndex + 3 + d] = (float)motValues[f][index + d];
-							for (int d = 3; d < dof; d++)
-							{
-								float v = (float)Math.toRadians((float)motValues[f][index + d]);
-								motion[i][motionIndex - 3 + d] = v;
-							}
-						} else {
-							for (int d = 0; d < dof; d++)
-							{
-								float v = (float)Math.toRadians(((float)motValues[f][index + d]));
-					            motion[i][motionIndex + d] = v;
-							}
-						}*/
-					}
-					
-					// put this bone's motion data into the AnimData object
-					//data.putBoneData(animCounter, i, motion[i]);
-					
-					data.putBoneRotData(i, rotation[i]);
-
-					if (dof == 6)
-						data.putBoneTransData(translation);
-					
-					// reset the index to be its index relative to all other objects
-					// (since the animation data is now stored bone-major)
-					b.setIndex(i);
-				}
+		}
+		
+		if (motionPos < 0)
+			return NO_MOTION;
+		
+		//"Frames: XX"
+		int pos = parser.nextLine(motionPos);
+		if (pos >= parser.getLimit()) //there should be more lines
+			return MALFORMED;
+		String line = parser.getText(pos, parser.lineEnd(pos));
+		if (line.indexOf("Frames") < 0) //the next line should be "Frames: XX"
+			return MALFORMED;
+		try {
+			numFrames = Integer.parseInt(line.substring(line.indexOf(" ")).trim());
+		} catch (NumberFormatException e) {
+			return MALFORMED;
+		}
+		
+		//"Frame Time: XX"
+		pos = parser.nextLine(pos);
+		if (pos >= parser.getLimit())
+			return MALFORMED;
+		line = parser.getText(pos, parser.lineEnd(pos));
+		if (line.indexOf("Frame Time") < 0)
+			return MALFORMED;
+		String[] tokens = line.split(" ");
+		frameTime = 0; //TODO: not sure what this is for but
+					   //I assume we need it!
+		try {
+			frameTime = Float.parseFloat(tokens[2]);
+		} catch (NumberFormatException e) {
+			return MALFORMED;
+		} catch (IndexOutOfBoundsException e) {
+			return MALFORMED;
+		}
+		
+		//Now read in all the numbers
+		pos = parser.nextLine(pos);
+		if (pos >= parser.getLimit())
+			return MALFORMED;
+		return pos;
+	}
+	
+	/**
+	 * Puts decoded motion into an AnimData object and switches the bone
+	 * indices from channel offsets to bone numbers.
+	 */
+	private AnimData toAnimData(AnimDataSink sink)
+	{
+		resetBoneIndices();
+		return sink.toAnimData(1.f / frameTime);
+	}
+	
+	private void resetBoneIndices()
+	{
+		// reset the index to be its index relative to all other objects
+		// (since the animation data is now stored bone-major)
+		for (int i = 0; i < allBones.size(); i++)
+			allBones.get(i).setIndex(i);
+	}
+	
+	/**
+	 * Decodes only the given frame ranges of the file. Lines in between are
+	 * skipped by scanning for line breaks, starting from the closest known
+	 * position in the file's MotionLineIndex.
+	 */
+	private List<BVHClip> parseRanges(File bvhFile, BVHMotionParser parser,
+			int[][] ranges) throws IOException {
+		int dataStart = parseHeader(parser);
+		if (dataStart < 0)
+			throw new IOException("Invalid BVH file: " + bvhFile);
+		checkRanges(bvhFile, ranges);
+		
+		MotionLineIndex index = MotionLineIndex.get(bvhFile, dataStart);
+		AnimDataSink layout = new AnimDataSink(allBones, 0);
+		resetBoneIndices();
+		List<BVHClip> clips = new ArrayList<BVHClip>(ranges.length);
+		for (int[] range : ranges)
+		{
+			int length = range[1] - range[0];
+			AnimDataSink sink = new AnimDataSink(layout, length);
+			if (length > 0) {
+				int pos = index.seek(parser, range[0]);
+				if (pos < 0 || parser.parseLines(pos, length, indexCounter, sink) < 0)
+					throw new IOException("Invalid BVH file: " + bvhFile);
 			}
+			clips.add(new BVHClip(bvhFile, skeleton, 
+					sink.toAnimData(1.f / frameTime), scale, range[0]));
 		}
-		return true;
+		return clips;
 	}
-
+	
+	private void checkRanges(File bvhFile, int[][] ranges) throws IOException {
+		for (int[] range : ranges)
+		{
+			if (range[0] < 0 || range[1] < range[0] || range[1] > numFrames)
+				throw new IOException("Frames " + range[0] + "-" + range[1]
+						+ " are not in " + bvhFile + " (" + numFrames + " frames)");
+		}
+	}
+	
+	/**
+	 * Scales the joint hierarchy to the target height and builds the Bone
+	 * tree from it.
+	 */
+	private void initSkeleton()
+	{
+		if (targetHeight > -1) {
+			//TODO: I'm not sure about this 10, it was a 2 in the 
+			//original code but the figure was still too big so...
+			double s = targetHeight / (10 * maxRootDistance);
+			 System.out.println("### scaling: " + s);
+			offsetScale = s;
+			scale = s;
+		}
+		allBones = new ArrayList<Bone>();
+		this.skeleton = processBVHNodes(root, null);
+		this.skeleton.scale(this.scale);
+	}
+	
 	public BVHJoint readBones(Scanner in, BVHJoint parent, String name)
 	{
 		BVHJoint curJoint = new BVHJoint();
@@ -284,11 +545,12 @@ public class BVHReader {
 	
 	private Bone processBVHNodes(BVHJoint node, Bone parent) {
 		Bone curBone = new Bone(node.name, null, node.dof, node.index);
+		Vector3d offset = scaledOffset(node);
 		if (parent != null) {
 			curBone.setParent(parent);
-			parent.geometry(node.offset, scale);
+			parent.geometry(offset, scale);
 		}
-		curBone.setBaseTranslation(node.offset);
+		curBone.setBaseTranslation(offset);
 		
 		// keep track of bones for matching up animation numbers
 		allBones.add(curBone);
@@ -301,10 +563,21 @@ public class BVHReader {
 		curBone.setChildren(children);
 		
 		if (node.endpt != null)
-			curBone.geometry(node.endpt.offset, scale);
+			curBone.geometry(scaledOffset(node.endpt), scale);
 		
 		return curBone;		
 	}
+	
+	/**
+	 * The parsed offsets are kept as they are in the file (so they can be
+	 * cached), scaling happens when the bones are created.
+	 */
+	private Vector3d scaledOffset(BVHNode node)
+	{
+		Vector3d v = new Vector3d(node.offset);
+		v.scale(offsetScale);
+		return v;
+	}
 
 	private Vector3d readVector(String line)
 	{
@@ -315,6 +588,10 @@ public class BVHReader {
 	}
 	
 	
+	/**
+	 * @return the raw channel values per frame, only available if
+	 *   setKeepMotionValues was switched on before reading
+	 */
 	public double[][] getMotVals() {
 		return motValues;
 	}
@@ -1,16 +1,25 @@
 package mocap.reader;
 
-import java.awt.List;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import mocap.figure.AnimData;
 import mocap.figure.Bone;
+import mocap.figure.ClipStore;
 
 class AnimSegment {
 	public int startFrame;
@@ -35,15 +44,31 @@ class AnimSegment {
 public class ConfigReader {
 	public ArrayList<AnimData> animData = new ArrayList<AnimData>();
 	public Bone skeleton;
+	public double scale = 1.0;
 	
-	private HashSet<String> files = new HashSet<String>();
+	// distinct files in order of first use
+	private LinkedHashSet<String> files = new LinkedHashSet<String>();
 	private ArrayList<AnimSegment> segments = new ArrayList<AnimSegment>();
-	private Map<String, Boolean> loadedFile = new HashMap<String, Boolean>();
 	
-	private Map<String, AnimData> fileData = new HashMap<String, AnimData>();
+	private Map<String, BVHClip> fileData = new HashMap<String, BVHClip>();
+	private ClipStore store = null;
 	
+	/**
+	 * @param store if set, the segments are moved into this store instead
+	 *   of being kept on the heap
+	 */
+	public void setClipStore(ClipStore store) {
+		this.store = store;
+	}
+	
+	/**
+	 * Reads a config file and loads the animation segments it lists. Every
+	 * distinct BVH file is read once, decoding only the frames its segments
+	 * need; the files are read concurrently on a bounded pool. animData keeps
+	 * the order of the config file.
+	 */
 	public boolean readFile(File cfgFile, String workingDir, float targetHeight) 
-			throws FileNotFoundException
+			throws IOException
 	{
 		Scanner in = new Scanner(cfgFile);
 		
@@ -60,7 +85,7 @@ public class ConfigReader {
 			// add file to list of things to load, if valid line
 			if (parts.length >= 3)
 			{
-				loadedFile.put(parts[0], false);
+				files.add(parts[0]);
 				segments.add(new AnimSegment(parts));
 			}
 		}
@@ -69,32 +94,80 @@ public class ConfigReader {
 		if (segments.size() == 0)
 			return false;
 		
-		// iterate through the segments
-		for (AnimSegment segment : segments)
-		{
-			if (!loadedFile.get(segment.animFile))
+		for (int i = 0; i < segments.size(); i++)
+			animData.add(null);
+		
+		int threads = Math.min(files.size(), 
+				Runtime.getRuntime().availableProcessors());
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			CompletionService<List<BVHClip>> loader = 
+					new ExecutorCompletionService<List<BVHClip>>(executor);
+			final BVHReader reader = new BVHReader();
+			Map<Future<List<BVHClip>>, String> pending = 
+					new HashMap<Future<List<BVHClip>>, String>();
+			for (String file : files)
+			{
+				final File animFile = new File(workingDir, file);
+				final float height = targetHeight;
+				final int[][] ranges = getRanges(file);
+				pending.put(loader.submit(new Callable<List<BVHClip>>() {
+					@Override
+					public List<BVHClip> call() throws IOException
+					{
+						return reader.read(animFile, height, ranges);
+					}
+				}), file);
+			}
+			
+			// the clips of a file come back in the order of its segments
+			for (int n = 0; n < files.size(); n++)
 			{
-				BVHReader r = new BVHReader();
-				File animFile = new File(workingDir, segment.animFile);
-				if (r.readFile(animFile, targetHeight))
+				Future<List<BVHClip>> done = loader.take();
+				String file = pending.get(done);
+				List<BVHClip> clips = done.get();
+				fileData.put(file, clips.get(0));
+				int next = 0;
+				for (int i = 0; i < segments.size(); i++)
 				{
-					// if successful, mark file as 'read' and stash its AnimData
-					fileData.put(segment.animFile, r.data);
-					loadedFile.put(segment.animFile, true);
-					
-					// set a skeleton if we don't have one already 
-					// (assuming same skeleton for all segments)
-					if (skeleton == null)
-						skeleton = r.skeleton;
+					if (segments.get(i).animFile.equals(file))
+					{
+						AnimData data = clips.get(next++).getData();
+						animData.set(i, store != null ? store.add(data) : data);
+					}
 				}
 			}
-			
-			// pull out the relevant segments
-			AnimData fileAD = fileData.get(segment.animFile);
-			animData.add(fileAD.subCopy(segment.startFrame, segment.endFrame));			
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("interrupted while loading " + cfgFile);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Couldn't load " + cfgFile, e.getCause());
+		} finally {
+			executor.shutdownNow();
 		}
 		
+		// assuming same skeleton for all segments, take the one of the
+		// first segment
+		BVHClip first = fileData.get(segments.get(0).animFile);
+		skeleton = first.getSkeleton();
+		scale = first.getScale();
+		
 		return true;
 	}
 	
+	/**
+	 * @return {start, end} of every segment of the file, in config order
+	 */
+	private int[][] getRanges(String file)
+	{
+		ArrayList<int[]> ranges = new ArrayList<int[]>();
+		for (AnimSegment segment : segments)
+		{
+			if (segment.animFile.equals(file))
+				ranges.add(new int[] { segment.startFrame, segment.endFrame });
+		}
+		return ranges.toArray(new int[ranges.size()][]);
+	}
+	
 }
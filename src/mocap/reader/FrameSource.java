@@ -0,0 +1,31 @@
+package mocap.reader;
+
+import java.io.IOException;
+
+import mocap.figure.AnimData;
+
+/**
+ * Storage that can decode any range of frames of one clip on demand, such
+ * as a BVHFrameIndex or the clip cache. Implementations must allow
+ * concurrent reads.
+ */
+public interface FrameSource {
+	
+	public int getNumFrames();
+	
+	public int getNumBones();
+	
+	public float getFps();
+	
+	/**
+	 * @return whether the frames have a root translation, known without
+	 *   decoding any of them
+	 */
+	public boolean hasTranslations();
+	
+	/**
+	 * @return the frames [start, end) as a stand-alone AnimData
+	 * @throws IOException if the data could not be read or is malformed
+	 */
+	public AnimData read(int start, int end) throws IOException;
+}
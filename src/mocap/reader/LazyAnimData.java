@@ -0,0 +1,216 @@
+package mocap.reader;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.vecmath.Quat4f;
+import javax.vecmath.Vector3f;
+
+import mocap.figure.AnimData;
+
+/**
+ * AnimData that only keeps a few blocks of frames in memory. A block is
+ * decoded from the FrameSource the first time one of its frames is asked
+ * for; the least recently used blocks are dropped once there are more
+ * than maxBlocks. When playback moves on to the next block, the one after
+ * it is decoded in the background.
+ *
+ * Only the per-frame accessors (getBoneRot, getBoneTrans) are cheap. The
+ * whole-clip accessors decode the complete clip on every call and are
+ * only there for code that has not been switched over yet.
+ */
+public class LazyAnimData extends AnimData
+{
+	public static final int DEFAULT_BLOCK_SIZE = 256;
+	public static final int DEFAULT_MAX_BLOCKS = 8;
+
+	private static ExecutorService prefetcher;
+
+	private final FrameSource source;
+	private final int blockSize;
+	private final int maxBlocks;
+
+	private final LinkedHashMap<Integer, AnimData> blocks;
+	private final Map<Integer, Future<AnimData>> pending =
+			new HashMap<Integer, Future<AnimData>>();
+	private int lastBlock = -1;
+	private AnimData current; // block lastBlock, read without boxing the index
+
+	public LazyAnimData(FrameSource source)
+	{
+		this(source, DEFAULT_BLOCK_SIZE, DEFAULT_MAX_BLOCKS);
+	}
+
+	/**
+	 * @param blockSize frames per block
+	 * @param maxBlocks blocks to keep in memory, at least 2 so that the
+	 *   prefetched block does not push out the current one
+	 */
+	public LazyAnimData(FrameSource source, int blockSize, int maxBlocks)
+	{
+		super(source.getNumBones());
+		setNumFrames(source.getNumFrames());
+		setFps(source.getFps());
+		this.source = source;
+		this.blockSize = blockSize;
+		this.maxBlocks = Math.max(maxBlocks, 2);
+		blocks = new LinkedHashMap<Integer, AnimData>(16, .75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, AnimData> e) {
+				return size() > LazyAnimData.this.maxBlocks;
+			}
+		};
+	}
+
+	private static synchronized ExecutorService getPrefetcher()
+	{
+		if (prefetcher == null) {
+			prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "LazyAnimData prefetch");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return prefetcher;
+	}
+
+	public FrameSource getSource() {
+		return source;
+	}
+
+	@Override
+	public Quat4f getBoneRot(int boneIndex, int frame, Quat4f q)
+	{
+		return getBlock(frame / blockSize).getBoneRot(boneIndex, frame % blockSize, q);
+	}
+
+	@Override
+	public Vector3f getBoneTrans(int frame, Vector3f v)
+	{
+		return getBlock(frame / blockSize).getBoneTrans(frame % blockSize, v);
+	}
+
+	private AnimData getBlock(int b)
+	{
+		Future<AnimData> future;
+		synchronized (this) {
+			if (b == lastBlock && current != null)
+				return current;
+			AnimData block = blocks.get(b);
+			if (block != null) {
+				moved(b);
+				current = block;
+				return block;
+			}
+			future = pending.get(b);
+		}
+
+		AnimData block = null;
+		if (future != null) {
+			try {
+				block = future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				// try again on this thread, to get the error here
+			}
+		}
+		if (block == null)
+			block = load(b);
+
+		synchronized (this) {
+			blocks.put(b, block);
+			pending.remove(b);
+			moved(b);
+			current = block;
+		}
+		return block;
+	}
+
+	/**
+	 * Starts decoding the block after b when playback has just entered b
+	 * from the block before.
+	 */
+	private void moved(int b)
+	{
+		if (b == lastBlock)
+			return;
+		final int next = b + 1;
+		if (b == lastBlock + 1 && next * blockSize < getNumFrames()
+				&& !blocks.containsKey(next) && !pending.containsKey(next)) {
+			pending.put(next, getPrefetcher().submit(new Callable<AnimData>() {
+				@Override
+				public AnimData call() throws IOException
+				{
+					AnimData block = load(next);
+					synchronized (LazyAnimData.this) {
+						if (pending.remove(next) != null)
+							blocks.put(next, block);
+					}
+					return block;
+				}
+			}));
+		}
+		lastBlock = b;
+	}
+
+	private AnimData load(int b)
+	{
+		int start = b * blockSize;
+		return load(start, Math.min(start + blockSize, getNumFrames()));
+	}
+
+	/**
+	 * Decodes every frame of the bone, see class comment.
+	 */
+	@Override
+	public float[] getBoneRotArray(int boneIndex)
+	{
+		return load(0, getNumFrames()).getBoneRotArray(boneIndex);
+	}
+
+	/**
+	 * Decodes every frame, see class comment.
+	 */
+	@Override
+	public float[] getBoneTransArray()
+	{
+		return load(0, getNumFrames()).getBoneTransArray();
+	}
+
+	@Override
+	public boolean hasTranslations()
+	{
+		return source.hasTranslations();
+	}
+
+	private AnimData load(int start, int end)
+	{
+		try {
+			return source.read(start, end);
+		} catch (IOException e) {
+			throw new IllegalStateException("could not read frames " + start
+					+ "-" + end, e);
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "<LazyAnimData frames:" + getNumFrames() + ">";
+	}
+}
@@ -0,0 +1,82 @@
+package mocap.reader;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Sparse index of the lines of a BVH MOTION section: the byte position of
+ * every STRIDE-th line. It is filled while lines are skipped and kept per
+ * file, so later seeks into the same file start from the closest known
+ * line instead of the top of the MOTION section.
+ */
+class MotionLineIndex {
+
+	static final int STRIDE = 64;
+	private static final int MAX_FILES = 64;
+	
+	// most recently used indices, keyed by path, size and modification time
+	private static final Map<String, MotionLineIndex> indices = 
+			new LinkedHashMap<String, MotionLineIndex>(16, .75f, true) {
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, MotionLineIndex> e) {
+			return size() > MAX_FILES;
+		}
+	};
+	
+	private int[] checkpoints = new int[16];
+	private int numCheckpoints;
+	
+	private MotionLineIndex(int dataStart)
+	{
+		checkpoints[0] = dataStart;
+		numCheckpoints = 1;
+	}
+	
+	/**
+	 * @param dataStart position of the first motion line
+	 * @return the index for this version of the file
+	 */
+	static synchronized MotionLineIndex get(File file, int dataStart)
+	{
+		String key = file.getAbsolutePath() + ":" + file.length() + ":"
+				+ file.lastModified();
+		MotionLineIndex index = indices.get(key);
+		if (index == null || index.checkpoints[0] != dataStart) {
+			index = new MotionLineIndex(dataStart);
+			indices.put(key, index);
+		}
+		return index;
+	}
+	
+	/**
+	 * @return byte position of the given motion line, or -1 if the file
+	 *   has fewer lines
+	 */
+	synchronized int seek(BVHMotionParser parser, int line)
+	{
+		int k = Math.min(line / STRIDE, numCheckpoints - 1);
+		int pos = checkpoints[k];
+		for (int cur = k * STRIDE; cur < line; ) {
+			pos = parser.nextLine(pos);
+			if (pos >= parser.getLimit())
+				return -1;
+			cur++;
+			if (cur == numCheckpoints * STRIDE)
+				addCheckpoint(pos);
+		}
+		return pos;
+	}
+	
+	private void addCheckpoint(int pos)
+	{
+		if (numCheckpoints == checkpoints.length) {
+			int[] grown = new int[2 * checkpoints.length];
+			System.arraycopy(checkpoints, 0, grown, 0, numCheckpoints);
+			checkpoints = grown;
+		}
+		checkpoints[numCheckpoints++] = pos;
+	}
+}
@@ -0,0 +1,17 @@
+package mocap.reader;
+
+/**
+ * Receives the decoded lines of a BVH MOTION section, one call per frame.
+ * 
+ * When frames are decoded in parallel the sink is called concurrently
+ * (for different frames), so implementations must only write to
+ * per-frame storage.
+ */
+public interface MotionSink {
+	/**
+	 * @param frame index of the frame (line) in the MOTION section
+	 * @param values the channel values of that line; the array is reused
+	 *   for the next line, so it must not be kept
+	 */
+	public void frame(int frame, double[] values);
+}
@@ -0,0 +1,132 @@
+package mocap;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.vecmath.Quat4f;
+
+import mocap.figure.AnimData;
+import mocap.j3d.Util;
+
+/**
+ * The MOTION section of a sample BVH file from the data directory, read
+ * the way BVHReader did before it parsed the mapped bytes: a line at a
+ * time, split at spaces and converted with Double.parseDouble. The tests
+ * use it as the reference for the decoders and as realistic motion.
+ *
+ * Set the system property mocap.data if the tests do not run from the
+ * project directory.
+ */
+public class SampleData
+{
+	public static final File DATA_DIR = new File(System.getProperty("mocap.data", "data"));
+
+	public final File file;
+	public final int frames;
+	public final float frameTime;
+	/** degrees of freedom of every joint with channels, in file order */
+	public final int[] dof;
+	public final int channels;
+	/** byte position of the first frame line */
+	public final int motionStart;
+	/** channel values, frames x channels */
+	public final double[][] values;
+
+	private SampleData(File file, int frames, float frameTime, int[] dof,
+			int motionStart, double[][] values)
+	{
+		this.file = file;
+		this.frames = frames;
+		this.frameTime = frameTime;
+		this.dof = dof;
+		int n = 0;
+		for (int d : dof)
+			n += d;
+		channels = n;
+		this.motionStart = motionStart;
+		this.values = values;
+	}
+
+	public static SampleData read(String name) throws IOException
+	{
+		File file = new File(DATA_DIR, name);
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), "ISO-8859-1"));
+		try {
+			List<Integer> dof = new ArrayList<Integer>();
+			int pos = 0;
+			String line;
+			while ((line = in.readLine()) != null) {
+				pos += line.length() + 1; // the samples end their lines with \n
+				String t = line.trim();
+				if (t.startsWith("CHANNELS"))
+					dof.add(Integer.parseInt(t.split("\\s+")[1]));
+				else if (t.equals("MOTION"))
+					break;
+			}
+			String framesLine = in.readLine();
+			String timeLine = in.readLine();
+			pos += framesLine.length() + timeLine.length() + 2;
+			int frames = Integer.parseInt(framesLine.substring(framesLine.indexOf(':') + 1).trim());
+			float frameTime = Float.parseFloat(timeLine.substring(timeLine.indexOf(':') + 1).trim());
+
+			double[][] values = new double[frames][];
+			for (int f = 0; f < frames; f++) {
+				String[] nums = in.readLine().trim().split(" +");
+				values[f] = new double[nums.length];
+				for (int i = 0; i < nums.length; i++)
+					values[f][i] = Double.parseDouble(nums[i]);
+			}
+			int[] d = new int[dof.size()];
+			for (int i = 0; i < d.length; i++)
+				d[i] = dof.get(i);
+			return new SampleData(file, frames, frameTime, d, pos, values);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return the motion as AnimData, converted with the vecmath based
+	 *   Util.getQuatFromEulerAngles the way the old reader did (z,y,x
+	 *   rotation channels, translations first for 6 channels)
+	 */
+	public AnimData toAnimData()
+	{
+		AnimData data = new AnimData(dof.length);
+		data.setNumFrames(frames);
+		data.setFps(1 / frameTime);
+		float[][] rot = new float[dof.length][4 * frames];
+		float[] trans = null;
+		for (int f = 0; f < frames; f++) {
+			int index = 0;
+			for (int i = 0; i < dof.length; i++) {
+				if (dof[i] == 6) {
+					if (trans == null)
+						trans = new float[3 * frames];
+					for (int k = 0; k < 3; k++)
+						trans[3*f + k] = (float) values[f][index + k];
+					index += 3;
+				}
+				float[] angles = new float[3];
+				for (int k = 0; k < 3; k++)
+					angles[k] = (float) Math.toRadians((float) values[f][index + k]);
+				Quat4f q = Util.getQuatFromEulerAngles(angles);
+				rot[i][4*f] = q.x;
+				rot[i][4*f + 1] = q.y;
+				rot[i][4*f + 2] = q.z;
+				rot[i][4*f + 3] = q.w;
+				index += 3;
+			}
+		}
+		for (int i = 0; i < dof.length; i++)
+			data.putBoneRotArray(i, rot[i]);
+		data.putBoneTransArray(trans);
+		return data;
+	}
+}
@@ -0,0 +1,88 @@
+package mocap.figure;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import javax.vecmath.Point3d;
+
+import mocap.SampleData;
+import mocap.reader.BVHClip;
+import mocap.reader.BVHReader;
+
+/**
+ * Allocation-rate regression test for the playback path: plays 50 figures
+ * through FigureManager.update (advance, parallel samplePose, applyPose,
+ * Bone.setPose) and checks that, after a warm-up, the ticks allocate
+ * next to nothing, so that playing causes no young GC churn.
+ *
+ * Allocation is measured with com.sun.management.ThreadMXBean over all
+ * threads, since the poses are sampled on the fork-join pool. The few
+ * bytes allowed per tick are for the pool's bookkeeping when the caller
+ * waits for the tasks; posing even one bone per figure with a new object
+ * would take more than that.
+ *
+ * Needs a display (Bones are Java3D nodes), but no universe: the figures
+ * are not live. Run from the project directory with the classes and
+ * lib/*.jar on the class path; a failed check ends with an AssertionError.
+ */
+public class FigureManagerAllocationTest
+{
+	static final int FIGURES = 50;
+	static final int WARMUP_TICKS = 2000, TICKS = 5000;
+	/** bytes per tick, over all threads */
+	static final long MAX_BYTES_PER_TICK = 256;
+
+	public static void main(String[] args) throws IOException
+	{
+		com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		if (!threads.isThreadAllocatedMemorySupported())
+			throw new AssertionError("allocation cannot be measured on this JVM");
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		FigureManager fm = new FigureManager();
+		BVHReader reader = new BVHReader();
+		reader.setUseCache(false);
+		File file = new File(SampleData.DATA_DIR, "10_01.bvh");
+		for (int i = 0; i < FIGURES; i++) {
+			BVHClip clip = reader.read(file, -1);
+			Figure f = fm.addFigure("figure " + i, clip.getSkeleton(),
+					new Point3d(i, 0, 0));
+			f.setAnimation(clip.getData());
+			f.getPlayer().reset();
+		}
+		fm.playAll();
+
+		// the clip loops, so any number of ticks keeps every figure playing
+		for (int t = 0; t < WARMUP_TICKS; t++)
+			fm.update(120);
+
+		long before = allocated(threads);
+		for (int t = 0; t < TICKS; t++)
+			fm.update(120);
+		long bytes = allocated(threads) - before;
+
+		long perTick = bytes / TICKS;
+		System.out.println("FigureManagerAllocationTest: " + bytes + " bytes in "
+				+ TICKS + " ticks of " + FIGURES + " figures");
+		if (perTick > MAX_BYTES_PER_TICK)
+			throw new AssertionError(perTick + " bytes allocated per tick, at most "
+					+ MAX_BYTES_PER_TICK + " expected");
+		System.out.println("FigureManagerAllocationTest: ok");
+	}
+
+	/**
+	 * @return bytes allocated so far by all live threads
+	 */
+	static long allocated(com.sun.management.ThreadMXBean threads)
+	{
+		long[] ids = threads.getAllThreadIds();
+		long[] bytes = threads.getThreadAllocatedBytes(ids);
+		long sum = 0;
+		for (long b : bytes)
+			if (b > 0)
+				sum += b;
+		return sum;
+	}
+}
@@ -0,0 +1,109 @@
+package mocap.figure;
+
+import java.io.IOException;
+import java.util.Random;
+
+import javax.vecmath.Quat4f;
+import javax.vecmath.Vector3f;
+
+import mocap.SampleData;
+
+/**
+ * Checks that every frame KeyframeReducer drops is rebuilt within the
+ * tolerances, that the clip actually gets smaller, and that random access
+ * gives the same frames as playing through (the sampler keeps a hint per
+ * track).
+ *
+ * Run from the project directory with the classes and lib/*.jar on the
+ * class path; a failed check ends with an AssertionError.
+ */
+public class KeyframeReducerTest
+{
+	/** float rounding allowed on top of the tolerances */
+	private static final double EPSILON = 1e-5;
+
+	public static void main(String[] args) throws IOException
+	{
+		for (String name : new String[] { "10_01.bvh", "01_01.bvh" }) {
+			AnimData data = SampleData.read(name).toAnimData();
+			staysWithinTolerance(data, Math.toRadians(1), 0.1, KeyframeReducer.DEFAULT_MAX_GAP);
+			staysWithinTolerance(data, Math.toRadians(0.1), 0.01, 30);
+			staysWithinTolerance(data, 0, 0, KeyframeReducer.DEFAULT_MAX_GAP);
+		}
+		System.out.println("KeyframeReducerTest: ok");
+	}
+
+	private static void check(boolean ok, String what)
+	{
+		if (!ok)
+			throw new AssertionError(what);
+	}
+
+	static void staysWithinTolerance(AnimData data, double maxAngle,
+			double maxDistance, int maxGap)
+	{
+		KeyframeReducer reducer = new KeyframeReducer(maxAngle, maxDistance);
+		reducer.setMaxGap(maxGap);
+		KeyframeAnimData keys = reducer.reduce(data);
+		int frames = data.getNumFrames();
+		check(keys.getNumFrames() == frames, "frame count " + keys.getNumFrames());
+		if (maxAngle > 0)
+			check(keys.getCompressionRatio() > 1, "not reduced: " + keys.getCompressionRatio());
+
+		Quat4f a = new Quat4f(), b = new Quat4f();
+		for (int i = 0; i < data.getNumBones(); i++) {
+			check(keys.getNumKeys(i) >= 2 && keys.getNumKeys(i) <= frames,
+					"bone " + i + " has " + keys.getNumKeys(i) + " keys");
+			check(keys.getNumKeys(i) >= (frames - 1 + maxGap - 1) / maxGap + 1,
+					"bone " + i + ": keys further apart than " + maxGap);
+			for (int f = 0; f < frames; f++) {
+				data.getBoneRot(i, f, a);
+				keys.getBoneRot(i, f, b);
+				double e = QuantizedAnimDataTest.angle(a, b);
+				check(e <= maxAngle + EPSILON, "bone " + i + ", frame " + f
+						+ " is off by " + e + " (tolerance " + maxAngle + ")");
+			}
+		}
+
+		check(keys.hasTranslations() == data.hasTranslations(), "translations lost");
+		if (data.hasTranslations()) {
+			Vector3f u = new Vector3f(), v = new Vector3f();
+			for (int f = 0; f < frames; f++) {
+				data.getBoneTrans(f, u);
+				keys.getBoneTrans(f, v);
+				u.sub(v);
+				check(u.length() <= maxDistance + EPSILON, "translation of frame " + f
+						+ " is off by " + u.length() + " (tolerance " + maxDistance + ")");
+			}
+		}
+
+		randomAccessMatchesPlayback(keys, new Random(7));
+	}
+
+	/**
+	 * Frames read in random order equal the ones read from first to last.
+	 */
+	static void randomAccessMatchesPlayback(KeyframeAnimData keys, Random rnd)
+	{
+		int frames = keys.getNumFrames(), bones = keys.getNumBones();
+		float[] played = new float[4 * bones * frames];
+		Quat4f q = new Quat4f();
+		for (int f = 0; f < frames; f++)
+			for (int i = 0; i < bones; i++) {
+				keys.getBoneRot(i, f, q);
+				int k = 4 * (f * bones + i);
+				played[k] = q.x;
+				played[k + 1] = q.y;
+				played[k + 2] = q.z;
+				played[k + 3] = q.w;
+			}
+		for (int n = 0; n < 20000; n++) {
+			int f = rnd.nextInt(frames), i = rnd.nextInt(bones);
+			keys.getBoneRot(i, f, q);
+			int k = 4 * (f * bones + i);
+			check(q.x == played[k] && q.y == played[k + 1] && q.z == played[k + 2]
+					&& q.w == played[k + 3], "bone " + i + ", frame " + f
+					+ " differs when read out of order");
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package mocap.figure;
+
+import java.io.IOException;
+import java.util.Random;
+
+import javax.vecmath.Quat4f;
+import javax.vecmath.Vector3f;
+
+import mocap.SampleData;
+
+/**
+ * Checks the error bound of the smallest-three rotations: with 15 bits over
+ * [-1/sqrt(2), 1/sqrt(2)] a component is off by at most half a step
+ * (2.2e-5), which keeps a decoded rotation within about 1e-4 radians of the
+ * original. Also checks that the reported error is the measured one and
+ * that translations are kept exactly.
+ *
+ * Run from the project directory with the classes and lib/*.jar on the
+ * class path; a failed check ends with an AssertionError.
+ */
+public class QuantizedAnimDataTest
+{
+	/** radians, the bound above with some room for float rounding */
+	static final double MAX_ERROR = 2e-4;
+
+	public static void main(String[] args) throws IOException
+	{
+		staysWithinBound(SampleData.read("01_01.bvh").toAnimData());
+		staysWithinBound(SampleData.read("10_01.bvh").toAnimData());
+		staysWithinBound(randomRotations(new Random(42), 20, 5000));
+		System.out.println("QuantizedAnimDataTest: ok");
+	}
+
+	private static void check(boolean ok, String what)
+	{
+		if (!ok)
+			throw new AssertionError(what);
+	}
+
+	static void staysWithinBound(AnimData data)
+	{
+		QuantizedAnimData packed = new QuantizedAnimData(data);
+		Quat4f a = new Quat4f(), b = new Quat4f();
+		double max = 0;
+		for (int i = 0; i < data.getNumBones(); i++) {
+			for (int f = 0; f < data.getNumFrames(); f++) {
+				data.getBoneRot(i, f, a);
+				packed.getBoneRot(i, f, b);
+				double e = angle(a, b);
+				check(e <= MAX_ERROR, "bone " + i + ", frame " + f + " is off by " + e);
+				max = Math.max(max, e);
+			}
+		}
+		check(Math.abs(packed.getMaxAngularError() - max) <= 1e-6,
+				"reported error " + packed.getMaxAngularError() + ", measured " + max);
+		check(packed.getCompressionRatio() > 2, "ratio " + packed.getCompressionRatio());
+
+		check(packed.hasTranslations() == data.hasTranslations(), "translations lost");
+		if (data.hasTranslations()) {
+			Vector3f u = new Vector3f(), v = new Vector3f();
+			for (int f = 0; f < data.getNumFrames(); f++)
+				check(data.getBoneTrans(f, u).equals(packed.getBoneTrans(f, v)),
+						"translation of frame " + f);
+		}
+	}
+
+	/**
+	 * @return angle (radians) between the rotations, in double precision
+	 *   and with a normalized original
+	 */
+	static double angle(Quat4f a, Quat4f b)
+	{
+		double na = Math.sqrt((double) a.x*a.x + (double) a.y*a.y
+				+ (double) a.z*a.z + (double) a.w*a.w);
+		double nb = Math.sqrt((double) b.x*b.x + (double) b.y*b.y
+				+ (double) b.z*b.z + (double) b.w*b.w);
+		double dot = ((double) a.x*b.x + (double) a.y*b.y
+				+ (double) a.z*b.z + (double) a.w*b.w) / (na * nb);
+		return 2 * Math.acos(Math.min(1, Math.abs(dot)));
+	}
+
+	/**
+	 * @return uniformly distributed unit quaternions, including ones with
+	 *   two nearly equal largest components
+	 */
+	static AnimData randomRotations(Random rnd, int bones, int frames)
+	{
+		AnimData data = new AnimData(bones);
+		data.setNumFrames(frames);
+		for (int i = 0; i < bones; i++) {
+			float[] rot = new float[4 * frames];
+			for (int f = 0; f < frames; f++) {
+				double x = rnd.nextGaussian(), y = rnd.nextGaussian();
+				double z = rnd.nextGaussian(), w = rnd.nextGaussian();
+				if (f % 10 == 0)
+					y = x; // a tie for the largest component
+				double n = Math.sqrt(x*x + y*y + z*z + w*w);
+				rot[4*f] = (float) (x / n);
+				rot[4*f + 1] = (float) (y / n);
+				rot[4*f + 2] = (float) (z / n);
+				rot[4*f + 3] = (float) (w / n);
+			}
+			data.putBoneRotArray(i, rot);
+		}
+		return data;
+	}
+}
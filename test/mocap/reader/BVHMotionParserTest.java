@@ -0,0 +1,152 @@
+package mocap.reader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import javax.vecmath.Quat4f;
+
+import mocap.SampleData;
+import mocap.j3d.Util;
+
+/**
+ * Checks the MOTION parser against the old Scanner/split/parseDouble path
+ * (bit for bit), the allocation-free Euler conversion against the vecmath
+ * one, and that malformed motion data is rejected.
+ *
+ * Run from the project directory with the classes and lib/*.jar on the
+ * class path; a failed check ends with an AssertionError.
+ */
+public class BVHMotionParserTest
+{
+	private static final String[] SAMPLES = { "01_01.bvh", "10_01.bvh" };
+
+	public static void main(String[] args) throws IOException
+	{
+		for (String name : SAMPLES) {
+			SampleData sample = SampleData.read(name);
+			parsesLikeParseDouble(sample, false);
+			parsesLikeParseDouble(sample, true);
+			convertsLikeVecmath(sample);
+		}
+		parsesNumberFormatsLikeParseDouble();
+		rejectsMalformedMotion();
+		System.out.println("BVHMotionParserTest: ok");
+	}
+
+	private static void check(boolean ok, String what)
+	{
+		if (!ok)
+			throw new AssertionError(what);
+	}
+
+	/**
+	 * Every value of the mapped file equals the one of the old path.
+	 */
+	static void parsesLikeParseDouble(final SampleData sample, boolean parallel)
+			throws IOException
+	{
+		BVHMotionParser parser = new BVHMotionParser(BVHMotionParser.map(sample.file));
+		final int[] lines = new int[1];
+		MotionSink sink = new MotionSink() {
+			@Override
+			public void frame(int frame, double[] values)
+			{
+				double[] expected = sample.values[frame];
+				check(values.length == expected.length, sample.file + ": values in frame " + frame);
+				for (int i = 0; i < values.length; i++)
+					check(Double.doubleToLongBits(values[i]) == Double.doubleToLongBits(expected[i]),
+							sample.file + ": frame " + frame + ", channel " + i + ": "
+							+ values[i] + " instead of " + expected[i]);
+				synchronized (lines) {
+					lines[0]++;
+				}
+			}
+		};
+		boolean ok = parallel
+				? parser.parseFramesParallel(sample.motionStart, sample.frames, sample.channels, sink)
+				: parser.parseFrames(sample.motionStart, sample.frames, sample.channels, sink);
+		check(ok, sample.file + " not parsed");
+		check(lines[0] == sample.frames, sample.file + ": " + lines[0] + " frames");
+	}
+
+	/**
+	 * Util.setQuatFromEulerAngles, which the decoder uses, gives the same
+	 * bits as the vecmath based getQuatFromEulerAngles of the old path.
+	 */
+	static void convertsLikeVecmath(SampleData sample)
+	{
+		Quat4f q = new Quat4f();
+		for (int f = 0; f < sample.frames; f++) {
+			int index = 0;
+			for (int d : sample.dof) {
+				if (d == 6)
+					index += 3;
+				float[] angles = new float[3];
+				for (int k = 0; k < 3; k++)
+					angles[k] = (float) Math.toRadians((float) sample.values[f][index + k]);
+				Quat4f expected = Util.getQuatFromEulerAngles(angles);
+				Util.setQuatFromEulerAngles(q, angles[0], angles[1], angles[2]);
+				check(Float.floatToIntBits(q.x) == Float.floatToIntBits(expected.x)
+						&& Float.floatToIntBits(q.y) == Float.floatToIntBits(expected.y)
+						&& Float.floatToIntBits(q.z) == Float.floatToIntBits(expected.z)
+						&& Float.floatToIntBits(q.w) == Float.floatToIntBits(expected.w),
+						sample.file + ": rotation in frame " + f + " is " + q
+						+ " instead of " + expected);
+				index += 3;
+			}
+		}
+	}
+
+	static void parsesNumberFormatsLikeParseDouble()
+	{
+		String[] numbers = { "0", "-0", "0.0", "-0.000", ".5", "-.5", "5.", "1e3",
+				"1E-3", "-2.5e+2", "123456789012345678901234567890", "0.1",
+				"-17.3198", "9.3722", "3.141592653589793238462643383279",
+				"1e-320", "4.9e-324", "1.7976931348623157e308", "00012.5000" };
+		StringBuilder line = new StringBuilder();
+		for (String n : numbers)
+			line.append(n).append(" \t ");
+		line.append("\r\n");
+		double[] values = new double[numbers.length];
+		BVHMotionParser parser = parser(line.toString());
+		check(parser.parseLine(0, values, 0, numbers.length) == parser.getLimit(),
+				"line of numbers not parsed");
+		for (int i = 0; i < numbers.length; i++)
+			check(Double.doubleToLongBits(values[i])
+					== Double.doubleToLongBits(Double.parseDouble(numbers[i])),
+					numbers[i] + " parsed as " + values[i]);
+	}
+
+	static void rejectsMalformedMotion()
+	{
+		MotionSink ignore = new MotionSink() {
+			@Override
+			public void frame(int frame, double[] values) {
+			}
+		};
+		String good = "1 2 3\n4 5 6\n";
+		check(parser(good).parseFrames(0, 2, 3, ignore), "valid motion rejected");
+		check(parser(good + "\n  \r\n").parseFrames(0, 2, 3, ignore),
+				"trailing blank lines rejected");
+
+		String[][] bad = {
+				{ "1 2 3\n", "fewer lines than frames" },
+				{ good + "7 8 9\n", "more lines than frames" },
+				{ "1 2\n4 5 6\n", "too few values on a line" },
+				{ "1 2 3 4\n4 5 6\n", "too many values on a line" },
+				{ "1 x 3\n4 5 6\n", "a word instead of a number" },
+				{ "1 2 3\n4 5 6a\n", "garbage after a number" },
+				{ "1 2 3\n4 - 6\n", "a lone sign" },
+				{ "1 2 3\n4 5e 6\n", "an exponent without digits" },
+				{ "1 2 3\n\n4 5 6\n", "an empty line among the frames" },
+		};
+		for (String[] b : bad)
+			check(!parser(b[0]).parseFrames(0, 2, 3, ignore), "accepted " + b[1]);
+	}
+
+	private static BVHMotionParser parser(String text)
+	{
+		return new BVHMotionParser(ByteBuffer.wrap(text.getBytes(Charset.forName("ISO-8859-1"))));
+	}
+}